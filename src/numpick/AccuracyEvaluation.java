@@ -0,0 +1,122 @@
+package numpick;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Counts every image of a dataset on several threads and measures how far off the counts are.
+ * Errors are folded into per-thread running stats that are merged at the end, so nothing per image is kept in memory.
+ * Each image's result can also be written to a CSV file as it is counted.
+ *
+ * The error of an image is |estimated - expected| / expected, as in Numpick.test.
+ */
+public class AccuracyEvaluation
+{
+	public int houghThreshold;
+	public double splitThreshold;
+	public int threads = Runtime.getRuntime().availableProcessors();
+
+	private BufferedWriter csv;
+
+	public AccuracyEvaluation(int houghThreshold, double splitThreshold)
+	{
+		this.houghThreshold = houghThreshold;
+		this.splitThreshold = splitThreshold;
+	}
+
+	/**
+	 * The dataset's prefetch window should be at least the number of threads, or they will wait on loading
+	 *
+	 * @param csvFile where to write file, expected, estimated, error and milliseconds for each image, null for nowhere
+	 * @return stats of the error over every image
+	 */
+	public RunningStats run(ImageDataset dataset, String csvFile) throws IOException, InterruptedException
+	{
+		if(csvFile != null)
+		{
+			csv = new BufferedWriter(new FileWriter(csvFile));
+			csv.write("file,expected,estimated,error,milliseconds");
+			csv.newLine();
+		}
+
+		final ImageDataset.SampleIterator samples = dataset.iterator();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			List<Future<RunningStats>> workers = new ArrayList<Future<RunningStats>>();
+			for(int i=0; i<threads; i++)
+			{
+				workers.add(executor.submit(new Callable<RunningStats>()
+				{
+					@Override
+					public RunningStats call() throws IOException
+					{
+						return evaluate(samples);
+					}
+				}));
+			}
+
+			RunningStats stats = new RunningStats();
+			for(Future<RunningStats> worker : workers)
+				stats.merge(worker.get());
+			return stats;
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException("Evaluation failed", e.getCause());
+		}
+		finally
+		{
+			executor.shutdownNow();
+			samples.close();
+			if(csv != null)
+			{
+				csv.close();
+				csv = null;
+			}
+		}
+	}
+
+	private RunningStats evaluate(ImageDataset.SampleIterator samples) throws IOException
+	{
+		RunningStats stats = new RunningStats();
+		ImageDataset.Sample sample;
+		while((sample = samples.take()) != null)
+		{
+			long start = System.nanoTime();
+			int estimated;
+			try
+			{
+				estimated = Numpick.countToothpicks(sample.image, houghThreshold, splitThreshold, sample.percentData, null, null);
+			}
+			finally
+			{
+				sample.release();
+			}
+			long elapsed = System.nanoTime() - start;
+
+			double error = (double) Math.abs(estimated - sample.count) / sample.count;
+			stats.add(error);
+
+			if(csv != null)
+			{
+				String line = String.format(Locale.ROOT, "%s,%d,%d,%.4f,%.2f", sample.filename, sample.count, estimated, error, elapsed / 1e6);
+				synchronized(csv)
+				{
+					csv.write(line);
+					csv.newLine();
+				}
+			}
+		}
+		return stats;
+	}
+}
@@ -0,0 +1,251 @@
+package numpick;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Micro benchmarks for the counting hot paths, run on generated fixtures so they need nothing but OpenCV.
+ * Each benchmark is warmed up, then run for a fixed time. The report has throughput and the heap allocated per call
+ * on the benchmarking thread. Mat pixel memory is native and not included.
+ *
+ * Usage: Benchmarks [name filter] [seconds per benchmark]
+ */
+public class Benchmarks
+{
+	private static abstract class Benchmark
+	{
+		String name;
+
+		Benchmark(String name)
+		{
+			this.name = name;
+		}
+
+		// Return something derived from the work so it can't be optimized away
+		abstract int run();
+	}
+
+	// Everything the benchmarks return ends up here
+	static volatile int sink;
+
+	static double warmupSeconds = 1;
+	static double measureSeconds = 3;
+
+	public static void main(String[] args) throws Exception
+	{
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		String filter = args.length > 0 ? args[0] : "";
+		if(args.length > 1)
+			measureSeconds = Double.parseDouble(args[1]);
+
+		List<Benchmark> benchmarks = createBenchmarks();
+		System.out.printf("%-36s %12s %12s %14s %12s\n", "benchmark", "ops/s", "us/op", "bytes/op", "MB/s alloc");
+		for(Benchmark benchmark : benchmarks)
+		{
+			if(benchmark.name.contains(filter))
+				measure(benchmark);
+		}
+	}
+
+	static List<Benchmark> createBenchmarks() throws Exception
+	{
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+		// A phone sized photo on disk for the decode and preprocessing path
+		File fixtureFolder = new File(System.getProperty("java.io.tmpdir"), "numpick-bench");
+		fixtureFolder.mkdirs();
+		final String photo = new File(fixtureFolder, "toothpicks.jpg").getPath();
+		Mat scene = scene(3264, 2448, 60, 1);
+		Imgcodecs.imwrite(photo, scene);
+		scene.release();
+
+		final ImagePreprocessor preprocessor = new ImagePreprocessor();
+		benchmarks.add(new Benchmark("processImage 3264x2448 jpg")
+		{
+			@Override
+			int run()
+			{
+				Mat edges = preprocessor.processImage(photo, null, null);
+				int rows = edges.rows();
+				edges.release();
+				return rows;
+			}
+		});
+
+		// The edge image the detectors see after preprocessing
+		Mat colour = scene(700, 525, 60, 2);
+		final Mat edges = preprocessor.preprocess(colour, null);
+		// The same with the gradient direction in every edge pixel
+		final Mat orientedEdges = new ImagePreprocessor(null, "", true).preprocess(colour, null);
+		colour.release();
+
+		benchmarks.add(new Benchmark("HoughParallelLines.run")
+		{
+			@Override
+			int run()
+			{
+				return HoughParallelLines.run(edges, 1, Math.PI/180, 0.25, 15, 80, 10).length;
+			}
+		});
+
+		benchmarks.add(new Benchmark("HoughParallelLines.runCoarseToFine")
+		{
+			@Override
+			int run()
+			{
+				return HoughParallelLines.runCoarseToFine(edges, 1, Math.PI/180, 0.25, 15, 80, 10, 4).length;
+			}
+		});
+
+		benchmarks.add(new Benchmark("HoughParallelLines.runPaired")
+		{
+			@Override
+			int run()
+			{
+				return HoughParallelLines.runPaired(edges, 1, Math.PI/180, 15, 80, 10).length;
+			}
+		});
+
+		benchmarks.add(new Benchmark("HoughVotes.build")
+		{
+			@Override
+			int run()
+			{
+				return HoughVotes.build(edges, 1, Math.PI/180, 80, true).lines(80).length;
+			}
+		});
+
+		benchmarks.add(new Benchmark("HoughParallelLines.run oriented")
+		{
+			@Override
+			int run()
+			{
+				return HoughParallelLines.run(orientedEdges, 1, Math.PI/180, 0.25, 15, 80, 10).length;
+			}
+		});
+
+		benchmarks.add(new Benchmark("HoughVotes.build oriented")
+		{
+			@Override
+			int run()
+			{
+				return HoughVotes.build(orientedEdges, 1, Math.PI/180, 80, true).lines(80).length;
+			}
+		});
+
+		for(final int lineCount : new int[] { 100, 500, 2000 })
+		{
+			final Point[] lines = clusteredLines(lineCount, lineCount / 10, 700 * Math.sqrt(2), new Random(3));
+			final double maxRho = 700 * Math.sqrt(2);
+			benchmarks.add(new Benchmark("HierarchicalClustering " + lineCount + " lines")
+			{
+				@Override
+				int run()
+				{
+					return HierarchicalClustering.countClusters(lines, 0.0236, maxRho, Math.PI, new ArrayList<Point>());
+				}
+			});
+			benchmarks.add(new Benchmark("GridClustering " + lineCount + " lines")
+			{
+				@Override
+				int run()
+				{
+					return GridClustering.countClusters(lines, 0.0236, maxRho, Math.PI, new ArrayList<Point>());
+				}
+			});
+		}
+
+		final double percentData = EdgeMap.of(edges).getPercentData();
+		benchmarks.add(new Benchmark("Numpick.countToothpicks")
+		{
+			@Override
+			int run()
+			{
+				return Numpick.countToothpicks(edges, 80, percentData, 0.0236);
+			}
+		});
+
+		return benchmarks;
+	}
+
+	static void measure(Benchmark benchmark)
+	{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		runFor(benchmark, warmupSeconds);
+
+		long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		long ops = runFor(benchmark, measureSeconds);
+		long elapsed = System.nanoTime() - start;
+		long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+		double seconds = elapsed / 1e9;
+		System.out.printf("%-36s %12.1f %12.1f %14d %12.1f\n", benchmark.name,
+				ops / seconds, elapsed / 1e3 / ops, allocated / ops, allocated / seconds / (1 << 20));
+	}
+
+	private static long runFor(Benchmark benchmark, double seconds)
+	{
+		long end = System.nanoTime() + (long) (seconds * 1e9);
+		long ops = 0;
+		int result = 0;
+		do
+		{
+			result += benchmark.run();
+			ops++;
+		}
+		while(System.nanoTime() < end);
+		sink = result;
+		return ops;
+	}
+
+	static Mat scene(int width, int height, int toothpicks, long seed)
+	{
+		SceneGenerator generator = new SceneGenerator(seed);
+		generator.width = width;
+		generator.height = height;
+		return generator.render(toothpicks).image;
+	}
+
+	/**
+	 * Lines in (rho, theta) form scattered around a number of centres, like the raw output of a Hough transform
+	 */
+	static Point[] clusteredLines(int lineCount, int clusters, double maxRho, Random random)
+	{
+		Point[] centres = new Point[Math.max(1, clusters)];
+		for(int i=0; i<centres.length; i++)
+			centres[i] = new Point((random.nextDouble() * 2 - 1) * maxRho * 0.7, random.nextDouble() * Math.PI);
+
+		Point[] lines = new Point[lineCount];
+		for(int i=0; i<lineCount; i++)
+		{
+			Point centre = centres[random.nextInt(centres.length)];
+			double theta = centre.y + random.nextGaussian() * 0.01;
+			double rho = centre.x + random.nextGaussian() * 3;
+			// Keep theta in [0, PI) the way the transforms report it
+			if(theta < 0)
+			{
+				theta += Math.PI;
+				rho = -rho;
+			}
+			else if(theta >= Math.PI)
+			{
+				theta -= Math.PI;
+				rho = -rho;
+			}
+			lines[i] = new Point(rho, theta);
+		}
+		return lines;
+	}
+}
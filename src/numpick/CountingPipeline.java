@@ -0,0 +1,325 @@
+package numpick;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+/**
+ * Counts toothpicks in a batch of image files, streaming them through decode, preprocess,
+ * Hough and cluster stages. Each stage has its own worker threads and hands images to the next
+ * through a bounded queue, so reading files overlaps with the CPU bound stages and only a few
+ * images are in memory at a time.
+ */
+public class CountingPipeline
+{
+	public static class Result
+	{
+		public String filename;
+		// -1 if the image could not be read or counted
+		public int count = -1;
+		public double percentData;
+		public int lineCount;
+	}
+
+	private static class Job
+	{
+		int index;
+		String filename;
+		Mat image;
+		Point[] lines;
+		int width, height;
+		boolean failed;
+
+		Job(int index, String filename)
+		{
+			this.index = index;
+			this.filename = filename;
+		}
+	}
+
+	// Tells a worker there is nothing more coming
+	private static final Job END = new Job(-1, null);
+
+	private abstract class Stage
+	{
+		String name;
+		int threads;
+		BlockingQueue<Job> input;
+		BlockingQueue<Job> output;
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger processed = new AtomicInteger();
+		AtomicLong busyNanos = new AtomicLong();
+
+		Stage(String name, int threads)
+		{
+			this.name = name;
+			this.threads = Math.max(1, threads);
+		}
+
+		abstract void process(Job job);
+
+		void start(List<Thread> workers)
+		{
+			running.set(threads);
+			for(int i=0; i<threads; i++)
+			{
+				Thread worker = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						work();
+					}
+				}, "pipeline-" + name + "-" + i);
+				worker.setDaemon(true);
+				worker.start();
+				workers.add(worker);
+			}
+		}
+
+		private void work()
+		{
+			try
+			{
+				while(true)
+				{
+					Job job = input.take();
+					if(job == END)
+						break;
+
+					// After an Error the rest only drain through, so the caller isn't left waiting for them
+					if(!job.failed && failure.get() == null)
+					{
+						long start = System.nanoTime();
+						try
+						{
+							process(job);
+						}
+						catch(Exception e)
+						{
+							System.out.println(name + " failed on " + job.filename + ": " + e);
+							job.failed = true;
+							release(job);
+						}
+						catch(Error e)
+						{
+							// Not this image's fault, run throws it once everything has drained
+							failure.compareAndSet(null, e);
+							job.failed = true;
+							release(job);
+						}
+						busyNanos.addAndGet(System.nanoTime() - start);
+						processed.incrementAndGet();
+					}
+					else
+					{
+						job.failed = true;
+						release(job);
+					}
+					output.put(job);
+				}
+
+				// The last worker out tells every worker of the next stage to stop
+				if(running.decrementAndGet() == 0 && output != results)
+				{
+					for(int i=0; i<downstreamThreads(this); i++)
+						output.put(END);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public int houghThreshold;
+	public double splitThreshold;
+
+	public int decodeThreads = 2;
+	public int preprocessThreads = Runtime.getRuntime().availableProcessors();
+	public int houghThreads = Runtime.getRuntime().availableProcessors();
+	public int clusterThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	// Capacity of each queue between stages
+	public int queueSize = 8;
+	public ImagePreprocessor preprocessor = new ImagePreprocessor();
+
+	private List<Stage> stages;
+	private BlockingQueue<Job> results;
+	// The first Error a stage hit this run
+	private AtomicReference<Error> failure;
+	private long wallNanos;
+
+	public CountingPipeline(int houghThreshold, double splitThreshold)
+	{
+		this.houghThreshold = houghThreshold;
+		this.splitThreshold = splitThreshold;
+	}
+
+	/**
+	 * Counts every file, blocking until all are done
+	 *
+	 * @return one result per file, in the same order
+	 * @throws Error the first one a stage hit, OutOfMemoryError say, after the other images have drained through
+	 */
+	public List<Result> run(List<String> filenames) throws InterruptedException
+	{
+		long start = System.nanoTime();
+		failure = new AtomicReference<Error>();
+
+		Stage decode = new Stage("decode", decodeThreads)
+		{
+			@Override
+			void process(Job job)
+			{
+				job.image = ImagePreprocessor.decode(job.filename, false);
+				if(job.image.empty())
+				{
+					System.out.println("Could not read " + job.filename);
+					job.failed = true;
+					release(job);
+				}
+			}
+		};
+
+		final Result[] out = new Result[filenames.size()];
+		for(int i=0; i<out.length; i++)
+		{
+			out[i] = new Result();
+			out[i].filename = filenames.get(i);
+		}
+
+		Stage preprocess = new Stage("preprocess", preprocessThreads)
+		{
+			@Override
+			void process(Job job)
+			{
+				AtomicReference<Double> percentData = new AtomicReference<Double>();
+				Mat edges = preprocessor.preprocess(job.image, percentData);
+				job.image.release();
+				job.image = edges;
+				out[job.index].percentData = percentData.get();
+			}
+		};
+
+		Stage hough = new Stage("hough", houghThreads)
+		{
+			@Override
+			void process(Job job)
+			{
+				job.width = job.image.width();
+				job.height = job.image.height();
+				job.lines = HoughVotes.build(job.image, 1, Math.PI/180, houghThreshold, true).lines(houghThreshold);
+				job.image.release();
+				job.image = null;
+			}
+		};
+
+		Stage cluster = new Stage("cluster", clusterThreads)
+		{
+			@Override
+			void process(Job job)
+			{
+				out[job.index].lineCount = job.lines.length;
+				out[job.index].count = Numpick.countLines(job.lines, job.width, job.height, splitThreshold, null, null);
+			}
+		};
+
+		stages = Arrays.asList(decode, preprocess, hough, cluster);
+		results = new ArrayBlockingQueue<Job>(queueSize);
+		BlockingQueue<Job> queue = new ArrayBlockingQueue<Job>(queueSize);
+		for(Stage stage : stages)
+		{
+			stage.input = queue;
+			queue = stage == cluster ? results : new ArrayBlockingQueue<Job>(queueSize);
+			stage.output = queue;
+		}
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for(Stage stage : stages)
+			stage.start(workers);
+
+		// Feed from a separate thread so this one can drain the results
+		final List<String> files = filenames;
+		final BlockingQueue<Job> first = decode.input;
+		final int firstThreads = decode.threads;
+		Thread feeder = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					for(int i=0; i<files.size(); i++)
+						first.put(new Job(i, files.get(i)));
+					for(int i=0; i<firstThreads; i++)
+						first.put(END);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "pipeline-feeder");
+		feeder.setDaemon(true);
+		feeder.start();
+
+		try
+		{
+			for(int i=0; i<out.length; i++)
+				results.take();
+			if(failure.get() != null)
+				throw failure.get();
+		}
+		finally
+		{
+			feeder.interrupt();
+			for(Thread worker : workers)
+				worker.interrupt();
+		}
+
+		wallNanos = System.nanoTime() - start;
+		return Arrays.asList(out);
+	}
+
+	/**
+	 * Prints how many images each stage got through, per second of wall time and per busy thread
+	 */
+	public void printReport()
+	{
+		double wallSeconds = wallNanos / 1e9;
+		System.out.printf("Pipeline: %.2f s wall\n", wallSeconds);
+		for(Stage stage : stages)
+		{
+			int processed = stage.processed.get();
+			double busySeconds = stage.busyNanos.get() / 1e9;
+			System.out.printf("%-10s threads %2d  images %5d  %7.1f images/s  %7.1f ms/image busy  %3.0f%% utilized\n",
+					stage.name, stage.threads, processed,
+					processed / wallSeconds,
+					processed == 0 ? 0 : busySeconds * 1000 / processed,
+					100 * busySeconds / (wallSeconds * stage.threads));
+		}
+	}
+
+	private int downstreamThreads(Stage stage)
+	{
+		return stages.get(stages.indexOf(stage) + 1).threads;
+	}
+
+	private static void release(Job job)
+	{
+		if(job.image != null)
+		{
+			job.image.release();
+			job.image = null;
+		}
+	}
+}
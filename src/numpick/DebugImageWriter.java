@@ -0,0 +1,132 @@
+package numpick;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Writes debug snapshots from a background thread so encoding PNGs stays off the counting path.
+ * Only a few images can wait at a time, when the queue is full new ones are dropped rather than blocking.
+ * Safe to share between threads.
+ */
+public class DebugImageWriter
+{
+	private static class Snapshot
+	{
+		String filename;
+		Mat image;
+	}
+
+	private final String outputFolder;
+	private final BlockingQueue<Snapshot> queue;
+	private final AtomicInteger dropped = new AtomicInteger();
+	// Queued or being written
+	private int pending;
+	private Thread writer;
+
+	/**
+	 * @param outputFolder prefix for every file name, with the trailing slash
+	 * @param capacity how many images can wait to be written
+	 */
+	public DebugImageWriter(String outputFolder, int capacity)
+	{
+		this.outputFolder = outputFolder;
+		this.queue = new ArrayBlockingQueue<Snapshot>(capacity);
+	}
+
+	/**
+	 * Queues a copy of the image, the caller can keep using its own
+	 */
+	public void write(String name, Mat image)
+	{
+		// Don't bother copying what would be dropped anyway
+		if(queue.remainingCapacity() == 0)
+		{
+			dropped.incrementAndGet();
+			return;
+		}
+		submit(name, image.clone());
+	}
+
+	/**
+	 * Queues the image itself, it is released once written or dropped
+	 */
+	public void submit(String name, Mat image)
+	{
+		Snapshot snapshot = new Snapshot();
+		snapshot.filename = outputFolder + name;
+		snapshot.image = image;
+
+		synchronized(this)
+		{
+			if(!queue.offer(snapshot))
+			{
+				dropped.incrementAndGet();
+				image.release();
+				return;
+			}
+			pending++;
+			if(writer == null)
+				startWriter();
+		}
+	}
+
+	/**
+	 * Blocks until everything queued so far is on disk
+	 */
+	public synchronized void flush() throws InterruptedException
+	{
+		while(pending > 0)
+			wait();
+	}
+
+	/**
+	 * @return how many images were thrown away because the queue was full
+	 */
+	public int getDropped()
+	{
+		return dropped.get();
+	}
+
+	private void startWriter()
+	{
+		writer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					while(true)
+					{
+						Snapshot snapshot = queue.take();
+						try
+						{
+							Imgcodecs.imwrite(snapshot.filename, snapshot.image);
+						}
+						catch(Exception e)
+						{
+							System.out.println("Could not write " + snapshot.filename + ": " + e);
+						}
+						snapshot.image.release();
+
+						synchronized(DebugImageWriter.this)
+						{
+							pending--;
+							DebugImageWriter.this.notifyAll();
+						}
+					}
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "debug-image-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+}
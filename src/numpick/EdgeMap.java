@@ -0,0 +1,186 @@
+package numpick;
+
+import org.opencv.core.Mat;
+
+/**
+ * Primitive view of a single channel 8 bit edge image, such as the output of Canny.
+ * The whole Mat is copied out in one bulk call and the coordinates of every non-zero
+ * pixel are collected, so callers never need to go through Mat.get one pixel at a time.
+ *
+ * An edge pixel can also carry the direction of the image gradient at it, the normal of the line it is on.
+ * Values 1 to 180 are that angle in degrees plus one, anything else, like Canny's 255, is an edge without one.
+ */
+public class EdgeMap
+{
+	private static final ThreadLocal<EdgeMap> edgeMapLocal = new ThreadLocal<EdgeMap>()
+	{
+		@Override
+		protected EdgeMap initialValue()
+		{
+			return new EdgeMap();
+		}
+	};
+
+	// Orientation of an edge pixel that doesn't have one
+	public static final int noOrientation = -1;
+	// Degrees either side of a pixel's orientation that its line can be at,
+	// the transforms only vote for those angles
+	public static final int orientationTolerance = 8;
+
+	private byte[] data = new byte[0];
+	private int[] xs = new int[0];
+	private int[] ys = new int[0];
+	private int[] orientations = new int[0];
+	private boolean oriented;
+	private int count;
+	private int width, height;
+
+	/**
+	 * Loads the image into this thread's edge map.
+	 * The returned map is reused by the next call on the same thread, so don't hold on to it.
+	 *
+	 * @param image a CV_8UC1 image, non-zero pixels are edges
+	 * @return the edge map for the current thread
+	 */
+	public static EdgeMap of(Mat image)
+	{
+		EdgeMap edgeMap = edgeMapLocal.get();
+		edgeMap.load(image);
+		return edgeMap;
+	}
+
+	/**
+	 * Copies the image into this map, growing the buffers only when needed
+	 *
+	 * @param image a CV_8UC1 image, non-zero pixels are edges
+	 */
+	public void load(Mat image)
+	{
+		width = image.cols();
+		height = image.rows();
+		int total = width * height;
+
+		if(data.length < total)
+			data = new byte[total];
+
+		// One native call for the whole image
+		if(total > 0)
+			image.get(0, 0, data);
+
+		count = 0;
+		for(int i=0; i<total; i++)
+		{
+			if(data[i] != 0)
+				count++;
+		}
+
+		if(xs.length < count)
+		{
+			xs = new int[count];
+			ys = new int[count];
+			orientations = new int[count];
+		}
+
+		int n = 0;
+		oriented = false;
+		for(int j=0; j<height; j++)
+		{
+			int rowStart = j * width;
+			for(int i=0; i<width; i++)
+			{
+				int value = data[rowStart + i] & 0xFF;
+				if(value != 0)
+				{
+					xs[n] = i;
+					ys[n] = j;
+					orientations[n] = value <= 180 ? value - 1 : noOrientation;
+					oriented |= value <= 180;
+					n++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param gx gradient along x, the columns
+	 * @param gy gradient along y, the rows
+	 * @return the edge pixel value for a gradient in that direction
+	 */
+	public static byte encodeOrientation(int gx, int gy)
+	{
+		// The gradient is the line's normal, and theta and theta + 180 are the same line
+		int degrees = (int) Math.round(Math.toDegrees(Math.atan2(gy, gx)));
+		degrees = ((degrees % 180) + 180) % 180;
+		return (byte) (degrees + 1);
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * @return the number of edge pixels
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * @return column of every edge pixel, only the first {@link #getCount()} entries are valid
+	 */
+	public int[] getXs()
+	{
+		return xs;
+	}
+
+	/**
+	 * @return row of every edge pixel, only the first {@link #getCount()} entries are valid
+	 */
+	public int[] getYs()
+	{
+		return ys;
+	}
+
+	/**
+	 * @return the angle of every edge pixel's normal in whole degrees from 0 to 179, or {@link #noOrientation},
+	 * only the first {@link #getCount()} entries are valid
+	 */
+	public int[] getOrientations()
+	{
+		return orientations;
+	}
+
+	/**
+	 * @return whether any edge pixel has an orientation
+	 */
+	public boolean isOriented()
+	{
+		return oriented;
+	}
+
+	/**
+	 * @return the raw pixels in row major order, only the first width*height entries are valid
+	 */
+	public byte[] getData()
+	{
+		return data;
+	}
+
+	/**
+	 * @return fraction of the image that is edge pixels
+	 */
+	public double getPercentData()
+	{
+		int totalPixels = width * height;
+		if(totalPixels == 0)
+			return 0;
+		return (double)count / totalPixels;
+	}
+}
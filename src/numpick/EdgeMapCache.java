@@ -0,0 +1,373 @@
+package numpick;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Binary cache of processImage results on disk, so warm runs skip decoding and preprocessing.
+ * Entries are keyed by file path and modification time, and the whole file is thrown away
+ * when the preprocessor's {@link ImagePreprocessor#getPipelineDescription() pipeline description} changes.
+ * The cache file is memory mapped when opened, edge maps are only copied out when asked for.
+ * A mapping can't be bigger than 2GB, so the file is mapped in segments and an edge map may span two of them.
+ * A mapped file can't be replaced on Windows and Java can't unmap it, so every save writes a new generation,
+ * filename.1, filename.2 and so on, and the older ones are deleted once nothing maps them any more.
+ *
+ * File layout, big endian:
+ * magic, version, pipeline description, then per entry:
+ * path, modification time, rows, cols, percent data, rows*cols bytes of edge map
+ * Strings are an int length followed by UTF-8 bytes.
+ */
+public class EdgeMapCache
+{
+	private static final int MAGIC = 0x4E504543; // "NPEC"
+	private static final int VERSION = 1;
+	private static final long SEGMENT_SIZE = 1 << 30;
+
+	private static class Entry
+	{
+		long modified;
+		int rows, cols;
+		double percentData;
+		// Where the pixels are in the mapped file, or the pixels themselves if added this run
+		long offset;
+		byte[] data;
+	}
+
+	private File file;
+	// Newest generation on disk, -1 if there is none
+	private long generation = -1;
+	private String pipeline;
+	private ImagePreprocessor preprocessor;
+	// The cache file, SEGMENT_SIZE bytes per buffer
+	private ByteBuffer[] mapped;
+	private Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private boolean dirty;
+
+	/**
+	 * Opens the cache, a missing, unreadable or outdated file just starts an empty cache
+	 */
+	public static EdgeMapCache open(String filename)
+	{
+		return open(filename, new ImagePreprocessor());
+	}
+	
+	/**
+	 * Opens the cache, a missing, unreadable or outdated file just starts an empty cache
+	 * 
+	 * @param preprocessor makes the edge maps that aren't cached yet
+	 */
+	public static EdgeMapCache open(String filename, ImagePreprocessor preprocessor)
+	{
+		EdgeMapCache cache = new EdgeMapCache(new File(filename), preprocessor.getPipelineDescription(), preprocessor);
+		try
+		{
+			cache.load();
+		}
+		catch (Exception e)
+		{
+			System.out.println("Ignoring edge map cache " + filename + ": " + e.getMessage());
+			cache.entries.clear();
+			cache.mapped = null;
+		}
+		cache.deleteOldGenerations();
+		return cache;
+	}
+
+	private EdgeMapCache(File file, String pipeline, ImagePreprocessor preprocessor)
+	{
+		this.file = file;
+		this.pipeline = pipeline;
+		this.preprocessor = preprocessor;
+	}
+
+	/**
+	 * Same as {@link ImagePreprocessor#processImage(String, Mat, AtomicReference)} without the raw image,
+	 * but served from the cache when the file hasn't changed since it was cached
+	 */
+	public Mat processImage(String filename, AtomicReference<Double> percentData)
+	{
+		Mat image = get(filename, percentData);
+		if(image != null)
+			return image;
+
+		AtomicReference<Double> computedPercent = new AtomicReference<Double>();
+		image = preprocessor.processImage(filename, null, computedPercent);
+		if(image != null)
+		{
+			put(filename, image, computedPercent.get());
+			if(percentData != null)
+				percentData.set(computedPercent.get());
+		}
+		return image;
+	}
+
+	public synchronized Mat get(String filename, AtomicReference<Double> percentData)
+	{
+		Entry entry = entries.get(filename);
+		if(entry == null || entry.modified != new File(filename).lastModified())
+			return null;
+
+		byte[] data = entry.data;
+		if(data == null)
+		{
+			data = new byte[entry.rows * entry.cols];
+			read(entry.offset, data, data.length);
+		}
+
+		Mat image = new Mat(entry.rows, entry.cols, CvType.CV_8UC1);
+		image.put(0, 0, data);
+		if(percentData != null)
+			percentData.set(entry.percentData);
+		return image;
+	}
+
+	public synchronized void put(String filename, Mat image, double percentData)
+	{
+		Entry entry = new Entry();
+		entry.modified = new File(filename).lastModified();
+		entry.rows = image.rows();
+		entry.cols = image.cols();
+		entry.percentData = percentData;
+		entry.data = new byte[entry.rows * entry.cols];
+		image.get(0, 0, entry.data);
+		entries.put(filename, entry);
+		dirty = true;
+	}
+
+	/**
+	 * Writes the cache back to disk if anything was added
+	 */
+	public synchronized void save() throws IOException
+	{
+		if(!dirty)
+			return;
+
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, pipeline);
+
+			byte[] buffer = new byte[0];
+			for(Map.Entry<String, Entry> e : entries.entrySet())
+			{
+				Entry entry = e.getValue();
+				writeString(out, e.getKey());
+				out.writeLong(entry.modified);
+				out.writeInt(entry.rows);
+				out.writeInt(entry.cols);
+				out.writeDouble(entry.percentData);
+
+				if(entry.data != null)
+				{
+					out.write(entry.data);
+				}
+				else
+				{
+					int size = entry.rows * entry.cols;
+					if(buffer.length < size)
+						buffer = new byte[size];
+					read(entry.offset, buffer, size);
+					out.write(buffer, 0, size);
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+
+		// Renamed to a name nobody has mapped, so nothing is replaced. What's mapped and the entries only change
+		// once the new generation is in place and read back, so a failed save leaves the cache as it was
+		File next = generationFile(generation + 1);
+		try
+		{
+			Files.move(temp.toPath(), next.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(temp.toPath(), next.toPath());
+		}
+
+		// Map the new file so the pixels added this run don't have to stay on the heap
+		load();
+		dirty = false;
+		deleteOldGenerations();
+	}
+
+	private File generationFile(long g)
+	{
+		return new File(file.getPath() + "." + g);
+	}
+
+	// The generations of this cache on disk, by number
+	private Map<Long, File> generations()
+	{
+		Map<Long, File> found = new TreeMap<Long, File>();
+		File[] files = file.getAbsoluteFile().getParentFile().listFiles();
+		if(files == null)
+			return found;
+		String prefix = file.getName() + ".";
+		for(File f : files)
+		{
+			String name = f.getName();
+			if(!name.startsWith(prefix))
+				continue;
+			try
+			{
+				found.put(Long.parseLong(name.substring(prefix.length())), f);
+			}
+			catch (NumberFormatException e)
+			{
+				// The temp file, or something else
+			}
+		}
+		return found;
+	}
+
+	// The old mappings are only dropped by the garbage collector, on Windows a file still mapped won't delete
+	// and is tried again on the next save or open
+	private void deleteOldGenerations()
+	{
+		for(Map.Entry<Long, File> g : generations().entrySet())
+		{
+			if(g.getKey() < generation)
+				g.getValue().delete();
+		}
+	}
+
+	private void load() throws IOException
+	{
+		// Set before reading, so a broken newest generation is saved over and deleted rather than read again
+		generation = -1;
+		for(long g : generations().keySet())
+			generation = g;
+		if(generation < 0)
+		{
+			entries = new LinkedHashMap<String, Entry>();
+			mapped = null;
+			return;
+		}
+		File current = generationFile(generation);
+
+		// Read the headers as a stream, skipping the pixels
+		Map<String, Entry> loaded = new LinkedHashMap<String, Entry>();
+		long length;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(current), 1 << 16));
+		try
+		{
+			length = current.length();
+			if(length < 8 || in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("not an edge map cache");
+			String description = readString(in);
+			if(!pipeline.equals(description))
+				throw new IOException("made by a different pipeline");
+
+			long position = 8 + 4 + description.getBytes(StandardCharsets.UTF_8).length;
+			while(position < length)
+			{
+				String path = readString(in);
+				Entry entry = new Entry();
+				entry.modified = in.readLong();
+				entry.rows = in.readInt();
+				entry.cols = in.readInt();
+				entry.percentData = in.readDouble();
+				position += 4 + path.getBytes(StandardCharsets.UTF_8).length + 8 + 4 + 4 + 8;
+				entry.offset = position;
+				long size = (long) entry.rows * entry.cols;
+				skipFully(in, size);
+				position += size;
+				if(position > length)
+					throw new EOFException("edge map cut short");
+				loaded.put(path, entry);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		ByteBuffer[] segments = new ByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+		RandomAccessFile raf = new RandomAccessFile(current, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			for(int i=0; i<segments.length; i++)
+			{
+				long start = i * SEGMENT_SIZE;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+			}
+		}
+		finally
+		{
+			// The mapping stays valid after the file is closed
+			raf.close();
+		}
+
+		entries = loaded;
+		mapped = segments;
+	}
+
+	// Copies pixels out of the mapped file, across segments if they have to
+	private void read(long offset, byte[] data, int size)
+	{
+		int done = 0;
+		while(done < size)
+		{
+			ByteBuffer segment = mapped[(int) (offset / SEGMENT_SIZE)].duplicate();
+			segment.position((int) (offset % SEGMENT_SIZE));
+			int count = Math.min(size - done, segment.remaining());
+			segment.get(data, done, count);
+			done += count;
+			offset += count;
+		}
+	}
+
+	private static void skipFully(DataInputStream in, long count) throws IOException
+	{
+		while(count > 0)
+		{
+			long skipped = in.skip(count);
+			if(skipped <= 0)
+				throw new EOFException("edge map cut short");
+			count -= skipped;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,283 @@
+package numpick;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.Point;
+
+/**
+ * Threshold clustering of lines on a uniform grid.
+ * Lines closer than the threshold in normalized (rho, theta) space end up in the same cluster,
+ * and a line only has to be compared to the lines in the 3x3 grid cells around it.
+ * Theta wraps around at PI, where (rho, theta) is the same line as (-rho, theta - PI).
+ */
+public class GridClustering
+{
+	/**
+	 * Single linkage threshold clustering
+	 * https://en.wikipedia.org/wiki/Single-linkage_clustering
+	 *
+	 * @param lines The lines to cluster, in (rho, theta) form
+	 * @param maxDistanceInCluster euclidean distance in normalized parameter space under which two lines are in the same cluster
+	 * @param maxRho largest value rho can take
+	 * @param maxTheta largest value theta can take
+	 * @return the estimated number of distinct clusters
+	 */
+	public static int countClusters(Point[] lines, double maxDistanceInCluster, double maxRho, double maxTheta)
+	{
+		return countClusters(lines, maxDistanceInCluster, maxRho, maxTheta, null);
+	}
+
+	/**
+	 * Single linkage threshold clustering
+	 * https://en.wikipedia.org/wiki/Single-linkage_clustering
+	 *
+	 * @param lines The lines to cluster, in (rho, theta) form
+	 * @param maxDistanceInCluster euclidean distance in normalized parameter space under which two lines are in the same cluster
+	 * @param maxRho largest value rho can take
+	 * @param maxTheta largest value theta can take
+	 * @param finalLines an optional list if you want the cluster centroids back
+	 * @return the estimated number of distinct clusters
+	 */
+	public static int countClusters(Point[] lines, double maxDistanceInCluster, double maxRho, double maxTheta, List<Point> finalLines)
+	{
+		int n = lines.length;
+		if(n == 0)
+			return 0;
+
+		// Normalize, theta wraps around every period
+		double period = Math.PI / maxTheta;
+		double[] rhos = new double[n];
+		double[] thetas = new double[n];
+		for(int i=0; i<n; i++)
+		{
+			rhos[i] = lines[i].x / maxRho;
+			thetas[i] = lines[i].y / maxTheta;
+		}
+
+		// Lines near either end of the theta range also go in as their mirror image on the other side,
+		// so the neighbouring cells across the wrap are searched like any other
+		double cellSize = maxDistanceInCluster;
+		int entries = 0;
+		int[] owner = new int[2 * n];
+		double[] entryRho = new double[2 * n];
+		double[] entryTheta = new double[2 * n];
+		for(int i=0; i<n; i++)
+		{
+			owner[entries] = i;
+			entryRho[entries] = rhos[i];
+			entryTheta[entries] = thetas[i];
+			entries++;
+
+			if(thetas[i] <= cellSize)
+			{
+				owner[entries] = i;
+				entryRho[entries] = -rhos[i];
+				entryTheta[entries] = thetas[i] + period;
+				entries++;
+			}
+			else if(thetas[i] >= period - cellSize)
+			{
+				owner[entries] = i;
+				entryRho[entries] = -rhos[i];
+				entryTheta[entries] = thetas[i] - period;
+				entries++;
+			}
+		}
+
+		// Sort the entries by cell so a cell is one binary search away
+		long minRhoCell = Long.MAX_VALUE, maxRhoCell = Long.MIN_VALUE, minThetaCell = Long.MAX_VALUE;
+		for(int e=0; e<entries; e++)
+		{
+			long rhoCell = cell(entryRho[e], cellSize);
+			minRhoCell = Math.min(minRhoCell, rhoCell);
+			maxRhoCell = Math.max(maxRhoCell, rhoCell);
+			minThetaCell = Math.min(minThetaCell, cell(entryTheta[e], cellSize));
+		}
+		long rhoCells = maxRhoCell - minRhoCell + 1;
+
+		// Cell in the high bits, entry in the low bits
+		long[] keys = new long[entries];
+		for(int e=0; e<entries; e++)
+		{
+			long cell = (cell(entryTheta[e], cellSize) - minThetaCell) * rhoCells + (cell(entryRho[e], cellSize) - minRhoCell);
+			keys[e] = (cell << 32) | e;
+		}
+		Arrays.sort(keys);
+		long[] cells = new long[entries];
+		int[] sorted = new int[entries];
+		for(int e=0; e<entries; e++)
+		{
+			cells[e] = keys[e] >>> 32;
+			sorted[e] = (int) keys[e];
+		}
+
+		// Join every line to the lines within the threshold in the surrounding cells
+		UnionFind clusters = new UnionFind(n);
+		double maxDistanceSquared = maxDistanceInCluster * maxDistanceInCluster;
+		for(int i=0; i<n; i++)
+		{
+			long rhoCell = cell(rhos[i], cellSize) - minRhoCell;
+			long thetaCell = cell(thetas[i], cellSize) - minThetaCell;
+
+			for(long dt=-1; dt<=1; dt++)
+			{
+				for(long dr=-1; dr<=1; dr++)
+				{
+					// Stepping off the end of a row would land in the next one
+					if(rhoCell + dr < 0 || rhoCell + dr >= rhoCells || thetaCell + dt < 0)
+						continue;
+
+					long key = (thetaCell + dt) * rhoCells + rhoCell + dr;
+					int e = lowerBound(cells, key);
+					for(; e<entries && cells[e] == key; e++)
+					{
+						int entry = sorted[e];
+						int j = owner[entry];
+						if(j <= i)
+							continue;
+
+						double dx = rhos[i] - entryRho[entry];
+						double dy = thetas[i] - entryTheta[entry];
+						if(dx*dx + dy*dy <= maxDistanceSquared)
+							clusters.union(i, j);
+					}
+				}
+			}
+		}
+
+		if(finalLines != null)
+			copyCentroidsToList(clusters, rhos, thetas, period, finalLines, maxRho, maxTheta);
+
+		return clusters.count();
+	}
+
+	private static void copyCentroidsToList(UnionFind clusters, double[] rhos, double[] thetas, double period,
+			List<Point> lines, double maxRho, double maxTheta)
+	{
+		int n = rhos.length;
+		double[] rhoSum = new double[n];
+		double[] thetaSum = new double[n];
+		int[] size = new int[n];
+
+		// Members that sit across the wrap from the first member of their cluster are mirrored over before averaging
+		int[] anchor = new int[n];
+		Arrays.fill(anchor, -1);
+		for(int i=0; i<n; i++)
+		{
+			int root = clusters.find(i);
+			if(anchor[root] == -1)
+				anchor[root] = i;
+
+			double rho = rhos[i], theta = thetas[i];
+			double anchorTheta = thetas[anchor[root]];
+			if(theta - anchorTheta > period / 2)
+			{
+				rho = -rho;
+				theta -= period;
+			}
+			else if(anchorTheta - theta > period / 2)
+			{
+				rho = -rho;
+				theta += period;
+			}
+
+			rhoSum[root] += rho;
+			thetaSum[root] += theta;
+			size[root]++;
+		}
+
+		for(int i=0; i<n; i++)
+		{
+			if(size[i] == 0)
+				continue;
+
+			double rho = rhoSum[i] / size[i];
+			double theta = thetaSum[i] / size[i];
+			if(theta < 0)
+			{
+				rho = -rho;
+				theta += period;
+			}
+			else if(theta >= period)
+			{
+				rho = -rho;
+				theta -= period;
+			}
+			lines.add(new Point(rho * maxRho, theta * maxTheta));
+		}
+	}
+
+	private static long cell(double value, double cellSize)
+	{
+		return (long) Math.floor(value / cellSize);
+	}
+
+	private static int lowerBound(long[] values, long key)
+	{
+		int low = 0, high = values.length;
+		while(low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if(values[mid] < key)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Disjoint sets with path halving and union by size
+	 * https://en.wikipedia.org/wiki/Disjoint-set_data_structure
+	 */
+	private static class UnionFind
+	{
+		private int[] parent;
+		private int[] size;
+		private int count;
+
+		public UnionFind(int n)
+		{
+			parent = new int[n];
+			size = new int[n];
+			for(int i=0; i<n; i++)
+			{
+				parent[i] = i;
+				size[i] = 1;
+			}
+			count = n;
+		}
+
+		public int find(int i)
+		{
+			while(parent[i] != i)
+			{
+				parent[i] = parent[parent[i]];
+				i = parent[i];
+			}
+			return i;
+		}
+
+		public void union(int a, int b)
+		{
+			int rootA = find(a), rootB = find(b);
+			if(rootA == rootB)
+				return;
+			if(size[rootA] < size[rootB])
+			{
+				int temp = rootA;
+				rootA = rootB;
+				rootB = temp;
+			}
+			parent[rootB] = rootA;
+			size[rootA] += size[rootB];
+			count--;
+		}
+
+		public int count()
+		{
+			return count;
+		}
+	}
+}
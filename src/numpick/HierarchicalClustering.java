@@ -1,6 +1,5 @@
 package numpick;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.opencv.core.Point;
@@ -8,43 +7,91 @@ import org.opencv.core.Point3;
 
 public class HierarchicalClustering
 {
-	private static class Cluster
+	/**
+	 * Every cluster ever created, indexed in creation order.
+	 * A cluster only keeps its centroid and member count, merged clusters have a count of zero.
+	 * Theta wraps around every period, where (rho, theta) is the same line as (-rho, theta - period).
+	 */
+	private static class Clusters
 	{
-		private List<Point> lines = new ArrayList<Point>();
-		private Point centroid;
+		private double[] rho;
+		private double[] theta;
+		private int[] size;
+		private int created;
+		private double period;
 		
-		public Cluster(Point p)
+		public Clusters(int capacity, double period)
 		{
-			lines.add(p);
-			centroid = p.clone();
+			rho = new double[capacity];
+			theta = new double[capacity];
+			size = new int[capacity];
+			this.period = period;
 		}
 		
-		public Cluster(Cluster one, Cluster two)
+		public int add(double rho, double theta)
 		{
-			lines.addAll(one.lines);
-			lines.addAll(two.lines);
-			
-			double rhoSum = 0, thetaSum = 0;
-			for(Point p : lines)
+			this.rho[created] = rho;
+			this.theta[created] = theta;
+			this.size[created] = 1;
+			return created++;
+		}
+		
+		/**
+		 * Replaces two clusters with a new one at the member weighted average of their centroids
+		 * @return the index of the new cluster
+		 */
+		public int merge(int one, int two)
+		{
+			int oneSize = size[one], twoSize = size[two];
+			int total = oneSize + twoSize;
+			// Across the wrap from the first cluster, the second is mirrored over before averaging
+			double twoRho = rho[two], twoTheta = theta[two];
+			if(theta[two] - theta[one] > period / 2)
 			{
-				rhoSum += p.x;
-				thetaSum += p.y;
+				twoRho = -twoRho;
+				twoTheta -= period;
 			}
-			
-			/*double oneRatio = (double)one.lines.size()/lines.size();
-			double twoRatio = (double)two.lines.size()/lines.size();
-			centroid = new Point(one.centroid.x *  oneRatio + two.centroid.x * twoRatio, one.centroid.y *  oneRatio + two.centroid.y * twoRatio);
-			*/
-			
-			centroid = new Point(rhoSum / lines.size(), thetaSum / lines.size());
+			else if(theta[one] - theta[two] > period / 2)
+			{
+				twoRho = -twoRho;
+				twoTheta += period;
+			}
+			double mergedRho = (rho[one] * oneSize + twoRho * twoSize) / total;
+			double mergedTheta = (theta[one] * oneSize + twoTheta * twoSize) / total;
+			if(mergedTheta < 0)
+			{
+				mergedRho = -mergedRho;
+				mergedTheta += period;
+			}
+			else if(mergedTheta >= period)
+			{
+				mergedRho = -mergedRho;
+				mergedTheta -= period;
+			}
+			rho[created] = mergedRho;
+			theta[created] = mergedTheta;
+			size[created] = total;
+			size[one] = 0;
+			size[two] = 0;
+			return created++;
+		}
+		
+		public boolean isActive(int i)
+		{
+			return size[i] > 0;
 		}
 		
-		public double distance(Cluster other)
+		public int created()
 		{
-			if(this == other)
+			return created;
+		}
+		
+		public double distance(int i, int j)
+		{
+			if(i == j)
 				return Double.POSITIVE_INFINITY;
 			
-			return HierarchicalClustering.distance(this.centroid, other.centroid);
+			return HierarchicalClustering.distance(rho[i], theta[i], rho[j], theta[j], period);
 		}
 	}
 	
@@ -70,7 +117,8 @@ public class HierarchicalClustering
 	 * https://en.wikipedia.org/wiki/Single-linkage_clustering
 	 *  
 	 * @param lines The lines to cluster, in (rho, theta) form
-	 * @param maxDistanceInCluster maximum euclidean distance between elements in a cluster in normalized parameter space
+	 * @param maxDistanceInCluster maximum euclidean distance between elements in a cluster in normalized parameter space,
+	 * theta wraps around at PI
 	 * @param maxRho largest value rho can take
 	 * @param maxTheta largest value theta can take
 	 * @param finalLines an optional list if you want the lines back
@@ -88,54 +136,73 @@ public class HierarchicalClustering
 		}
 		
 		// Construct initial clusters containing one point
-		List<Cluster> clusters = new ArrayList<HierarchicalClustering.Cluster>();
-		for(int i=0; i<lines.length; i++)
+		int n = lines.length;
+		Clusters clusters = new Clusters(2 * n - 1, Math.PI / maxTheta);
+		for(int i=0; i<n; i++)
 		{
-			Point normalizedPoint = new Point(lines[i].x / maxRho, lines[i].y / maxTheta);
-			clusters.add(new Cluster(normalizedPoint));
+			clusters.add(lines[i].x / maxRho, lines[i].y / maxTheta);
+		}
+		int remaining = n;
+		
+		// Each cluster remembers its nearest cluster created after it. Centroids never move, so that only has to be
+		// looked for again when the nearest one is merged away, and a new cluster is only checked against the older ones.
+		// The closest pair is then the smallest of those, ties going to the lower indices like a full scan would
+		int[] nearest = new int[2 * n - 1];
+		double[] nearestDistance = new double[2 * n - 1];
+		for(int i=0; i<n; i++)
+		{
+			findNearest(clusters, i, nearest, nearestDistance);
 		}
-
-		int distIndex = 0;
 		
 		while(true)
 		{
-			int n = clusters.size();
+			// Find the closest pair that are both still clusters
 			double minimumDistance = Double.POSITIVE_INFINITY;
 			int mi = -1, mj = -1;
-			
-			for(int i=0; i<n; i++)
+			for(int i=0; i<clusters.created(); i++)
 			{
-				for(int j=i; j<n; j++)
+				if(clusters.isActive(i) && nearestDistance[i] < minimumDistance)
 				{
-					Cluster ci = clusters.get(i);
-					Cluster cj = clusters.get(j);
-					double distance =  ci.distance(cj);
-					
-					if(distance < minimumDistance)
-					{
-						minimumDistance = distance;
-						mi = i;
-						mj = j;
-					}
+					minimumDistance = nearestDistance[i];
+					mi = i;
+					mj = nearest[i];
 				}
 			}
 			
 			if(minimumDistance != Double.POSITIVE_INFINITY && minimumDistance > maxDistanceInCluster)
 			{
-				int size = clusters.size();
 				copyClustersToList(clusters, finalLines, maxRho, maxTheta);
-				return size;
+				return remaining;
 			}
-						
+			
 			if(minimumDistance != Double.POSITIVE_INFINITY && mi != -1 && mj != -1)
 			{
-				// Remove j first because it is necessarily larger
-				Cluster cj = clusters.remove(mj);
-				Cluster ci = clusters.remove(mi);
-				clusters.add(new Cluster(cj, ci));
+				int merged = clusters.merge(mj, mi);
+				remaining--;
+				nearest[merged] = -1;
+				nearestDistance[merged] = Double.POSITIVE_INFINITY;
+				
+				for(int k=0; k<merged; k++)
+				{
+					if(!clusters.isActive(k))
+						continue;
+					if(nearest[k] == mi || nearest[k] == mj)
+					{
+						findNearest(clusters, k, nearest, nearestDistance);
+					}
+					else
+					{
+						double distance = clusters.distance(k, merged);
+						if(distance < nearestDistance[k])
+						{
+							nearest[k] = merged;
+							nearestDistance[k] = distance;
+						}
+					}
+				}
 			}
 			
-			if(clusters.size() == 1)
+			if(remaining == 1)
 			{
 				copyClustersToList(clusters, finalLines, maxRho, maxTheta);
 				return 1;
@@ -143,25 +210,50 @@ public class HierarchicalClustering
 		}
 	}
 	
-	private static void copyClustersToList(List<Cluster> clusters, List<Point> lines, double maxRho, double maxTheta)
+	/**
+	 * Looks through the active clusters created after i for the closest one, the first of equally close ones
+	 */
+	private static void findNearest(Clusters clusters, int i, int[] nearest, double[] nearestDistance)
+	{
+		nearest[i] = -1;
+		nearestDistance[i] = Double.POSITIVE_INFINITY;
+		for(int j=i+1; j<clusters.created(); j++)
+		{
+			if(!clusters.isActive(j))
+				continue;
+			double distance = clusters.distance(i, j);
+			if(distance < nearestDistance[i])
+			{
+				nearest[i] = j;
+				nearestDistance[i] = distance;
+			}
+		}
+	}
+	
+	private static void copyClustersToList(Clusters clusters, List<Point> lines, double maxRho, double maxTheta)
 	{
 		if(lines == null)
 			return;
 		
-		for(Cluster c : clusters)
+		for(int i=0; i<clusters.created(); i++)
 		{
-			lines.add(new Point(c.centroid.x * maxRho, c.centroid.y * maxTheta));
+			if(clusters.isActive(i))
+				lines.add(new Point(clusters.rho[i] * maxRho, clusters.theta[i] * maxTheta));
 		}
 	}
 	
 	
-	private static double distance(Point p1, Point p2)
+	/**
+	 * Distance to whichever of (rho2, theta2) and its mirror image across the wrap is closer
+	 */
+	private static double distance(double rho1, double theta1, double rho2, double theta2, double period)
 	{
-		if(p1 == p2) 
-			return Double.POSITIVE_INFINITY;
-		double dx = p1.x - p2.x;
-		double dy = p1.y - p2.y;
-		return Math.sqrt(dx*dx + dy*dy);
-		// return Math.abs(p1.x - p2.x) + Math.abs(p1.y - p2.y);
+		double dx = rho1 - rho2;
+		double dy = theta1 - theta2;
+		double direct = Math.sqrt(dx*dx + dy*dy);
+		double mx = rho1 + rho2;
+		double my = Math.abs(dy) - period;
+		return Math.min(direct, Math.sqrt(mx*mx + my*my));
+		// return Math.abs(rho1 - rho2) + Math.abs(theta1 - theta2);
 	}
 }
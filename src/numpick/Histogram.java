@@ -0,0 +1,131 @@
+package numpick;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative longs, safe to record into from any number of threads.
+ * Buckets are log-linear: 8 per power of two, so any value is within 12.5% of its bucket's bounds
+ * and the whole long range fits in under 500 buckets.
+ */
+public class Histogram
+{
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	// Enough for the highest bit of a positive long
+	private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value)
+	{
+		if(value < 0)
+			value = 0;
+
+		buckets.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long current = max.get();
+		while(value > current && !max.compareAndSet(current, value))
+			current = max.get();
+	}
+
+	/**
+	 * Records the nanoseconds since start, which came from System.nanoTime
+	 */
+	public void recordSince(long start)
+	{
+		record(System.nanoTime() - start);
+	}
+
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	public long getSum()
+	{
+		return sum.get();
+	}
+
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	public double getMean()
+	{
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param quantile between 0 and 1
+	 * @return the upper bound of the bucket the quantile falls in, never more than the max
+	 */
+	public long getQuantile(double quantile)
+	{
+		long n = count.get();
+		if(n == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(quantile * n);
+		long seen = 0;
+		for(int i=0; i<BUCKETS; i++)
+		{
+			seen += buckets.get(i);
+			if(seen >= rank && seen > 0)
+				return Math.min(upperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	public int getBucketCount()
+	{
+		return BUCKETS;
+	}
+
+	public long getBucket(int i)
+	{
+		return buckets.get(i);
+	}
+
+	/**
+	 * @return the largest value that goes in bucket i
+	 */
+	public static long upperBound(int i)
+	{
+		return i == BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(i + 1) - 1;
+	}
+
+	static int bucket(long value)
+	{
+		if(value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long lowerBound(int i)
+	{
+		if(i < SUB_BUCKETS)
+			return i;
+		int exponent = i / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = i % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+	}
+
+	public void reset()
+	{
+		for(int i=0; i<BUCKETS; i++)
+			buckets.set(i, 0);
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+}
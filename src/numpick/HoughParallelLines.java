@@ -3,176 +3,678 @@ package numpick;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 
 public class HoughParallelLines
 {
-	private static final ThreadLocal<int[][][]> accumulatorLocal = new ThreadLocal<int[][][]>()
+	private static final ThreadLocal<int[]> accumulatorLocal = new ThreadLocal<int[]>()
 	{
 		@Override
-		protected int[][][] initialValue() 
+		protected int[] initialValue()
 		{
-			return new int[1][1][1];
+			return new int[1];
 		};
 	};
-	
+
+	// The width slice runPaired searches
+	private static final ThreadLocal<int[]> pairsLocal = new ThreadLocal<int[]>()
+	{
+		@Override
+		protected int[] initialValue()
+		{
+			return new int[1];
+		};
+	};
+
+	private static final ExecutorService votingPool = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "hough-voting");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private static final ConcurrentHashMap<Double, ThetaTable> thetaTables = new ConcurrentHashMap<Double, ThetaTable>();
+
+	/**
+	 * Precomputed trig values for every theta step of a given deltaTheta
+	 */
+	private static class ThetaTable
+	{
+		int size;
+		int[] thetaIndex;
+		double[] rowFactor;
+		double[] colFactor;
+		// Steps either side of an edge pixel's orientation it votes for, see EdgeMap
+		int orientationWindow;
+		double deltaTheta;
+
+		public ThetaTable(double deltaTheta)
+		{
+			int accumHeight = (int) (Math.PI / deltaTheta);
+			this.deltaTheta = deltaTheta;
+			orientationWindow = (int) Math.ceil(Math.toRadians(EdgeMap.orientationTolerance) / deltaTheta);
+
+			// Step theta exactly like the voting loop always has, so the bins line up.
+			// Rounding in the running sum can land two steps in the same bin.
+			int steps = 0;
+			for (double theta = 0; theta < Math.PI; theta += deltaTheta)
+				steps++;
+			thetaIndex = new int[steps];
+			rowFactor = new double[steps];
+			colFactor = new double[steps];
+
+			for (double theta = 0; theta < Math.PI; theta += deltaTheta)
+			{
+				int index = (int) Math.floor(theta / deltaTheta);
+				if(index >= accumHeight)
+					break;
+
+				// The distance from the origin to the line through (row, col) at angle theta
+				// works out to row*sin(PI - theta) - col*cos(PI - theta)
+				thetaIndex[size] = index;
+				rowFactor[size] = Math.sin(Math.PI - theta);
+				colFactor[size] = -Math.cos(Math.PI - theta);
+				size++;
+			}
+		}
+
+		/**
+		 * @return the step closest to an orientation from {@link EdgeMap#getOrientations()}
+		 */
+		int orientationStep(int orientation)
+		{
+			return (int) Math.round(Math.toRadians(orientation) / deltaTheta) % size;
+		}
+
+		/**
+		 * @return whether a pixel with the orientation step votes at step t
+		 */
+		boolean inWindow(int center, int t)
+		{
+			int distance = Math.abs(t - center);
+			return Math.min(distance, size - distance) <= orientationWindow;
+		}
+	}
+
+	/**
+	 * The rho offset and width bin of every width step
+	 */
+	private static class WidthTable
+	{
+		double[] halfWidths;
+		int[] widthIndices;
+
+		public WidthTable(double deltaWidth, double maxWidth)
+		{
+			// Every width step offsets rho by half the width
+			int widthSteps = 0;
+			for (double width = -maxWidth; width <= maxWidth; width += deltaWidth)
+				widthSteps++;
+			halfWidths = new double[widthSteps];
+			widthIndices = new int[widthSteps];
+
+			int w = 0;
+			for (double width = -maxWidth; width <= maxWidth; width += deltaWidth)
+			{
+				halfWidths[w] = width / 2;
+				widthIndices[w] = (int) Math.floor(Math.abs(width) / deltaWidth);
+				w++;
+			}
+		}
+	}
+
+	private static ThetaTable getThetaTable(double deltaTheta)
+	{
+		ThetaTable table = thetaTables.get(deltaTheta);
+		if(table == null)
+		{
+			table = new ThetaTable(deltaTheta);
+			thetaTables.putIfAbsent(deltaTheta, table);
+		}
+		return table;
+	}
+
 	public static Point[] run(Mat image, double deltaRho, double deltaTheta,
 			double deltaWidth, double maxWidth, int threshold, int maximaRadius)
 	{
-		try
+		return run(image, deltaRho, deltaTheta, deltaWidth, maxWidth, threshold, maximaRadius, 1);
+	}
+
+	/**
+	 * Same as the single threaded version, but the voting is split into theta slices
+	 * that run on a shared pool. Each slice owns its own theta rows of the accumulator,
+	 * so the result is identical no matter how many threads are used.
+	 *
+	 * @param threads number of theta slices to vote in parallel, 1 or less votes on the calling thread
+	 */
+	public static Point[] run(Mat image, double deltaRho, double deltaTheta,
+			double deltaWidth, double maxWidth, int threshold, int maximaRadius, int threads)
+	{
+		long start = System.nanoTime();
+
+		// Dim 1, height: theta
+		// Dim 2, width: rho
+		// Dim 3, depth: width (of parallel lines)
+		// Flattened as ((theta * accumWidth) + rho) * accumDepth + width
+
+		int maxDim = (int) ((Math.max(image.width(), image.height()) / deltaRho) + maxWidth);
+		int accumWidth = (int) (maxDim * Math.sqrt(2)) * 2;
+		int accumHeight = (int) (Math.PI / deltaTheta);
+		int accumDepth = (int) (maxWidth / deltaWidth) + 1;
+		int accumSize = accumHeight * accumWidth * accumDepth;
+		int[] accumulator = accumulatorLocal.get();
+
+		if(accumulator.length < accumSize)
 		{
-			// Dim 1, height: theta
-			// Dim 2, width: rho
-			// Dim 3, depth: width (of parallel lines)
-			
-			int maxDim = (int) ((Math.max(image.width(), image.height()) / deltaRho) + maxWidth);
-			int accumWidth = (int) (maxDim * Math.sqrt(2)) * 2;
-			int accumHeight = (int) (Math.PI / deltaTheta);
-			int accumDepth = (int) (maxWidth / deltaWidth) + 1;
-			int[][][] accumulator = accumulatorLocal.get();
-			
-			if(accumulator.length < accumHeight || accumulator[0].length < accumWidth || accumulator[0][0].length < accumDepth)
+			accumulator = new int[accumSize];
+			accumulatorLocal.set(accumulator);
+		}
+		else
+		{
+			Arrays.fill(accumulator, 0, accumSize, 0);
+		}
+
+		ThetaTable thetaTable = getThetaTable(deltaTheta);
+
+		WidthTable widthTable = new WidthTable(deltaWidth, maxWidth);
+		double[] halfWidths = widthTable.halfWidths;
+		int[] widthIndices = widthTable.widthIndices;
+
+		// Run the accumulator on all non-zero pixels
+		EdgeMap edgeMap = EdgeMap.of(image);
+		int[] xs = edgeMap.getXs();
+		int[] ys = edgeMap.getYs();
+		int edgeCount = edgeMap.getCount();
+		int[] orientations = edgeMap.isOriented() ? edgeMap.getOrientations() : null;
+
+		if(threads <= 1)
+		{
+			vote(accumulator, xs, ys, orientations, edgeCount, thetaTable, 0, thetaTable.size,
+					halfWidths, widthIndices, accumWidth, accumDepth, deltaRho);
+		}
+		else
+		{
+			voteInParallel(accumulator, xs, ys, orientations, edgeCount, thetaTable, threads,
+					halfWidths, widthIndices, accumWidth, accumDepth, deltaRho);
+		}
+
+		int maxWidthIndex = mostCommonWidth(accumulator, accumSize, accumDepth, widthVoteFloor);
+
+		// Extract the rho's and theta's from the accumulator
+		List<Double> rhoList = new ArrayList<>();
+		List<Double> thetaList = new ArrayList<>();
+		// Only local maxima, as if a cell is not one then the other
+		// point should be the line. Prevents lines segment doubles
+		int[] peaks = MaximumFilter.peaks(accumulator, maxWidthIndex, accumDepth, accumHeight, accumWidth, maximaRadius, threshold);
+		for (int peak : peaks)
+		{
+			rhoList.add((peak % accumWidth - accumWidth / 2) * deltaRho);
+			thetaList.add(peak / accumWidth * deltaTheta);
+		}
+
+		// Package as a point array for easy consumption
+		Point[] lines = new Point[rhoList.size()];
+		for (int i = 0; i < rhoList.size(); i++)
+		{
+			double rho = rhoList.get(i);
+			double theta = thetaList.get(i);
+			lines[i] = new Point(rho, theta);
+		}
+
+		Metrics.stage("hough parallel lines").recordSince(start);
+		return lines;
+	}
+
+	/**
+	 * Coarse to fine version of run.
+	 * The edge map is shrunk by factor, a coarse pixel being an edge if any pixel of its block is, and voted on
+	 * with theta and width bins factor times larger. Peaks of that small accumulator mark where the lines can be,
+	 * and only the fine cells around them are voted on and searched, for only the few widths around the coarse best width.
+	 *
+	 * This is an approximation of run. A fine cell that is searched gets exactly the votes run would give it,
+	 * but the most common width is picked once for the whole image from the searched cells only, where run counts
+	 * every cell, and lines the coarse pass misses are never searched. On random edge maps of pairs and noise
+	 * (Numpick.coarseToFineTest) 3 of 12 images differ from run: two by a line or two the coarse pass missed,
+	 * one where the picked width is another one and almost every line is different.
+	 *
+	 * @param factor how much coarser the first pass is
+	 */
+	public static Point[] runCoarseToFine(Mat image, double deltaRho, double deltaTheta,
+			double deltaWidth, double maxWidth, int threshold, int maximaRadius, int factor)
+	{
+		long start = System.nanoTime();
+
+		int maxDim = (int) ((Math.max(image.width(), image.height()) / deltaRho) + maxWidth);
+		int accumWidth = (int) (maxDim * Math.sqrt(2)) * 2;
+		int accumHeight = (int) (Math.PI / deltaTheta);
+		int accumDepth = (int) (maxWidth / deltaWidth) + 1;
+
+		EdgeMap edgeMap = EdgeMap.of(image);
+		int[] xs = edgeMap.getXs();
+		int[] ys = edgeMap.getYs();
+		int edgeCount = edgeMap.getCount();
+		int[] orientations = edgeMap.isOriented() ? edgeMap.getOrientations() : null;
+
+		// Coarse pass, every coarse pixel votes for every angle as its block can hold edges of any orientation
+
+		int coarseCols = image.width() / factor + 1;
+		boolean[] coarseEdge = new boolean[coarseCols * (image.height() / factor + 1)];
+		int[] coarseXs = new int[edgeCount];
+		int[] coarseYs = new int[edgeCount];
+		int coarseCount = 0;
+		for (int p = 0; p < edgeCount; p++)
+		{
+			int x = xs[p] / factor, y = ys[p] / factor;
+			if(!coarseEdge[y * coarseCols + x])
 			{
-				accumulator = new int[accumHeight][accumWidth][accumDepth];
-				accumulatorLocal.set(accumulator);
+				coarseEdge[y * coarseCols + x] = true;
+				coarseXs[coarseCount] = x;
+				coarseYs[coarseCount] = y;
+				coarseCount++;
 			}
-			
-			
-			// Run the accumulator on all non-zero pixels
-			byte[] pixel = new byte[1];
-			for (int j = 0; j < image.rows(); j++)
+		}
+
+		double coarseMaxWidth = maxWidth / factor;
+		int coarseMaxDim = (int) ((Math.max(image.width(), image.height()) / factor / deltaRho) + coarseMaxWidth);
+		int coarseWidth = (int) (coarseMaxDim * Math.sqrt(2)) * 2;
+		int coarseDepth = (int) (coarseMaxWidth / deltaWidth) + 1;
+		ThetaTable coarseThetas = getThetaTable(deltaTheta * factor);
+		WidthTable coarseWidths = new WidthTable(deltaWidth, coarseMaxWidth);
+		int coarseHeight = (int) (Math.PI / (deltaTheta * factor));
+		int[] coarse = new int[coarseHeight * coarseWidth * coarseDepth];
+		vote(coarse, coarseXs, coarseYs, null, coarseCount, coarseThetas, 0, coarseThetas.size,
+				coarseWidths.halfWidths, coarseWidths.widthIndices, coarseWidth, coarseDepth, deltaRho);
+
+		// A coarse pixel stands for a block, so a line gets about 1/factor of the votes and so does the floor
+		int coarseWidthIndex = mostCommonWidth(coarse, coarse.length, coarseDepth, (double) widthVoteFloor / factor);
+		int coarseThreshold = (int) (threshold * coarseFraction / factor);
+
+		// Mark the fine cells around every coarse peak. Within one coarse theta bin a line's rho moves by up to
+		// the bin's angle times the image diagonal, so the rho window is that much wider.
+		// Peaks are only searched in the core cells, the rest is there so their neighbours have the right votes.
+		int thetaPad = factor;
+		int rhoPad = (int) Math.ceil(factor * deltaTheta * maxDim * Math.sqrt(2) / deltaRho) + 2 * factor;
+		boolean[] core = new boolean[accumHeight * accumWidth];
+		boolean[] covered = new boolean[accumHeight * accumWidth];
+		boolean[] rowCovered = new boolean[accumHeight];
+		for (int peak : MaximumFilter.peaks(coarse, coarseWidthIndex, coarseDepth, coarseHeight, coarseWidth, 1, coarseThreshold))
+		{
+			int row = peak / coarseWidth * factor;
+			int rho = (peak % coarseWidth - coarseWidth / 2) * factor + accumWidth / 2;
+			mark(core, null, row - thetaPad, row + factor + thetaPad, rho - rhoPad, rho + factor + rhoPad, accumHeight, accumWidth);
+			mark(covered, rowCovered, row - thetaPad - maximaRadius, row + factor + thetaPad + maximaRadius,
+					rho - rhoPad - maximaRadius, rho + factor + rhoPad + maximaRadius, accumHeight, accumWidth);
+		}
+
+		// Fine pass, only the widths the coarse width bin stands for and a margin around them,
+		// as blocks can make a pair of edges look a coarse bin or about a pixel wider or narrower
+
+		int widthMargin = Math.max(factor, (int) Math.ceil(1 / deltaWidth));
+		int firstWidth = Math.max(0, coarseWidthIndex * factor - widthMargin);
+		int lastWidth = Math.min(accumDepth - 1, (coarseWidthIndex + 1) * factor - 1 + widthMargin);
+		int windowDepth = lastWidth - firstWidth + 1;
+
+		WidthTable widthTable = new WidthTable(deltaWidth, maxWidth);
+		int windowSteps = 0;
+		double[] halfWidths = new double[widthTable.halfWidths.length];
+		int[] widthIndices = new int[widthTable.widthIndices.length];
+		for (int w = 0; w < widthTable.halfWidths.length; w++)
+		{
+			if(widthTable.widthIndices[w] >= firstWidth && widthTable.widthIndices[w] <= lastWidth)
 			{
-				for (int i = 0; i < image.cols(); i++)
+				halfWidths[windowSteps] = widthTable.halfWidths[w];
+				widthIndices[windowSteps] = widthTable.widthIndices[w] - firstWidth;
+				windowSteps++;
+			}
+		}
+
+		ThetaTable thetaTable = getThetaTable(deltaTheta);
+		int coveredSteps = 0;
+		int[] steps = new int[thetaTable.size];
+		for (int t = 0; t < thetaTable.size; t++)
+		{
+			if(rowCovered[thetaTable.thetaIndex[t]])
+				steps[coveredSteps++] = t;
+		}
+
+		int accumSize = accumHeight * accumWidth * windowDepth;
+		int[] accumulator = accumulatorLocal.get();
+		if(accumulator.length < accumSize)
+		{
+			accumulator = new int[accumSize];
+			accumulatorLocal.set(accumulator);
+		}
+		else
+		{
+			Arrays.fill(accumulator, 0, accumSize, 0);
+		}
+
+		// Cells whose rho is close enough to a covered cell for one of the widths to reach it,
+		// so most pixels skip the width loop for most thetas
+		double reachWidth = 0;
+		for (int w = 0; w < windowSteps; w++)
+			reachWidth = Math.max(reachWidth, Math.abs(halfWidths[w]));
+		int reachRadius = (int) Math.ceil(reachWidth / deltaRho) + 1;
+		boolean[] reach = new boolean[accumHeight * accumWidth];
+		for (int j = 0; j < accumHeight; j++)
+		{
+			if(!rowCovered[j])
+				continue;
+			for (int i = 0; i < accumWidth; i++)
+			{
+				if(covered[j * accumWidth + i])
+					mark(reach, null, j, j + 1, i - reachRadius, i + reachRadius + 1, accumHeight, accumWidth);
+			}
+		}
+
+		// Same orientation windows as vote
+		boolean oriented = orientations != null && 2 * thetaTable.orientationWindow + 1 < thetaTable.size;
+		int rhoOffset = accumWidth / 2;
+		for (int p = 0; p < edgeCount; p++)
+		{
+			double row = ys[p], col = xs[p];
+			int center = oriented && orientations[p] != EdgeMap.noOrientation ? thetaTable.orientationStep(orientations[p]) : -1;
+			for (int s = 0; s < coveredSteps; s++)
+			{
+				int t = steps[s];
+				if(center >= 0 && !thetaTable.inWindow(center, t))
+					continue;
+				double rho = row * thetaTable.rowFactor[t] + col * thetaTable.colFactor[t];
+				int thetaBase = thetaTable.thetaIndex[t] * accumWidth;
+				if(!reach[thetaBase + (int) Math.floor(rho / deltaRho) + rhoOffset])
+					continue;
+				for (int w = 0; w < windowSteps; w++)
 				{
-					int num = image.get(i, j, pixel);
-					if (num > 0)
-					{
-						int val = (int) pixel[0] & 0xFF;
-						if (val > 0)
-						{
-							for (double theta = 0; theta < Math.PI; theta += deltaTheta)
-							{
-								// Computing the lines through this pixel
-								double x = i, 
-										y = j, 
-										dx = Math.cos(Math.PI - theta) * 10, 
-										dy = Math.sin(Math.PI - theta) * 10,
-										xp = x - dx, 
-										yp = y - dy, 
-										rho = originToLineDistance(x, y, xp, yp);
-	
-								int thetaIndex = (int) Math.floor(theta / deltaTheta);
-	
-								for (double width = -maxWidth; width <= maxWidth; width += deltaWidth)
-								{
-									// The new rho in the center of the parallel lines
-									double rhoPrime = rho + width / 2;
-	
-									int rhoIndex = (int) Math.floor((rhoPrime) / deltaRho) + accumWidth / 2;
-									int widthIndex = (int) Math.floor(Math.abs(width) / deltaWidth);
-									accumulator[thetaIndex][rhoIndex][widthIndex] += 1;
-								}
-							}
-						}
-					}
+					int cell = thetaBase + (int) Math.floor((rho + halfWidths[w]) / deltaRho) + rhoOffset;
+					if(covered[cell])
+						accumulator[cell * windowDepth + widthIndices[w]] += 1;
 				}
 			}
-			
-			
-			// Find width frequencies
-			int[] widthCount = new int[accumDepth];
-			for(int i=0; i<accumHeight; i++)
+		}
+
+		int maxWidthIndex = mostCommonWidth(accumulator, accumSize, windowDepth, widthVoteFloor);
+
+		// Same peak test and order as run, kept in the core cells
+		List<Point> lines = new ArrayList<Point>();
+		for (int peak : MaximumFilter.peaks(accumulator, maxWidthIndex, windowDepth, accumHeight, accumWidth, maximaRadius, threshold))
+		{
+			if(core[peak])
+				lines.add(new Point((peak % accumWidth - accumWidth / 2) * deltaRho, peak / accumWidth * deltaTheta));
+		}
+
+		Metrics.stage("hough parallel lines coarse to fine").recordSince(start);
+		return lines.toArray(new Point[lines.size()]);
+	}
+
+	/**
+	 * The lines run finds with deltaWidth = deltaRho, centres of parallel pairs at the most common width,
+	 * from a plain (theta, rho) accumulator instead of one with a width dimension.
+	 * Every edge pixel votes once per theta, in rho bins half as wide as run's. Run moves a pixel's rho half a width
+	 * either way before binning it, and for whole bin widths that lands in the same bin as moving its half bin does,
+	 * so a cell of run's accumulator is the sum of two pairs of neighbouring half bins and the width can be picked
+	 * by correlating each theta row with itself.
+	 *
+	 * The lines are the same as run's with deltaWidth = deltaRho and maxWidth a whole number of rho bins,
+	 * up to rounding of rho's right at a bin edge.
+	 * They are not the same as run's with a finer deltaWidth: run then spreads a pair's votes over more width bins,
+	 * so it can settle on another width and other centres, as it would against its own deltaWidth = deltaRho output.
+	 *
+	 * Uses a fraction of the memory, and the voting does no per width work at all.
+	 */
+	public static Point[] runPaired(Mat image, double deltaRho, double deltaTheta,
+			double maxWidth, int threshold, int maximaRadius)
+	{
+		long start = System.nanoTime();
+
+		// Same rho bins as run, so the rho's match, and twice as many half bins to vote in
+		int maxDim = (int) ((Math.max(image.width(), image.height()) / deltaRho) + maxWidth);
+		int accumWidth = (int) (maxDim * Math.sqrt(2)) * 2;
+		int accumHeight = (int) (Math.PI / deltaTheta);
+		int accumSize = accumHeight * accumWidth;
+		int halfWidth = 2 * accumWidth;
+		int maxSeparation = (int) (maxWidth / deltaRho);
+
+		int[] accumulator = accumulatorLocal.get();
+		if(accumulator.length < 2 * accumSize)
+		{
+			accumulator = new int[2 * accumSize];
+			accumulatorLocal.set(accumulator);
+		}
+		else
+		{
+			Arrays.fill(accumulator, 0, 2 * accumSize, 0);
+		}
+
+		EdgeMap edgeMap = EdgeMap.of(image);
+		ThetaTable thetaTable = getThetaTable(deltaTheta);
+		vote(accumulator, edgeMap.getXs(), edgeMap.getYs(), edgeMap.isOriented() ? edgeMap.getOrientations() : null,
+				edgeMap.getCount(), thetaTable, 0, thetaTable.size,
+				new double[] { 0 }, new int[] { 0 }, halfWidth, 1, deltaRho / 2);
+
+		// Width frequencies, counted like run does over cells with more than widthVoteFloor votes.
+		// Cell c at width d is the bin starting at half bin 2c - d plus the one starting at 2c + d, or just the one at 2c
+		// without a width. A cell above the floor has a bin with at least minPairLine, so only the pairs of those bins are looked at,
+		// each pair once: a pair of two such bins is counted from its first one
+		int[] widthCount = new int[maxSeparation + 1];
+		for (int j = 0; j < accumHeight; j++)
+		{
+			int row = j * halfWidth;
+			for (int h = -1; h < halfWidth; h++)
 			{
-				for(int j=0; j<accumWidth; j++)
+				int value = bin(accumulator, row, h, halfWidth);
+				if(value < minPairLine)
+					continue;
+
+				if(h % 2 == 0 && value > widthVoteFloor)
+					widthCount[0] += value;
+				for (int d = 1; d <= maxSeparation; d++)
 				{
-					for (int k = 0; k < accumDepth; k++)
+					// As the first bin, the centre has to be a cell
+					int center = (h + d) / 2;
+					if((h + d) % 2 == 0 && center < accumWidth)
+					{
+						int pair = value + bin(accumulator, row, h + 2 * d, halfWidth);
+						if(pair > widthVoteFloor)
+							widthCount[d] += pair;
+					}
+					// As the second, unless the first was counted already
+					int first = h - 2 * d;
+					if((h - d) % 2 == 0 && h - d >= 0 && bin(accumulator, row, first, halfWidth) < minPairLine)
 					{
-						if(accumulator[i][j][k] > 5)
-							widthCount[k] += accumulator[i][j][k];
+						int pair = value + bin(accumulator, row, first, halfWidth);
+						if(pair > widthVoteFloor)
+							widthCount[d] += pair;
 					}
 				}
 			}
-			
-			// find max width
-			int maxWidthIndex = 0;
+		}
+
+		int separation = 0;
+		for (int d = 0; d <= maxSeparation; d++)
+			if(widthCount[d] > widthCount[separation])
+				separation = d;
+
+		// The width slice run would search
+		int[] pairs = pairsLocal.get();
+		if(pairs.length < accumSize)
+		{
+			pairs = new int[accumSize];
+			pairsLocal.set(pairs);
+		}
+		for (int j = 0; j < accumHeight; j++)
+		{
+			int row = j * halfWidth;
+			for (int i = 0; i < accumWidth; i++)
+			{
+				pairs[j * accumWidth + i] = separation == 0 ? bin(accumulator, row, 2 * i, halfWidth) :
+					bin(accumulator, row, 2 * i - separation, halfWidth) + bin(accumulator, row, 2 * i + separation, halfWidth);
+			}
+		}
+
+		List<Point> lines = new ArrayList<Point>();
+		for (int peak : MaximumFilter.peaks(pairs, 0, 1, accumHeight, accumWidth, maximaRadius, threshold))
+			lines.add(new Point((peak % accumWidth - accumWidth / 2) * deltaRho, peak / accumWidth * deltaTheta));
+
+		Metrics.stage("hough parallel lines paired").recordSince(start);
+		return lines.toArray(new Point[lines.size()]);
+	}
+
+	/**
+	 * Votes of a rho bin made of half bins h and h + 1, the ones past the ends of the row have none
+	 */
+	private static int bin(int[] accumulator, int row, int h, int halfWidth)
+	{
+		return (h >= 0 && h < halfWidth ? accumulator[row + h] : 0) + (h + 1 >= 0 && h + 1 < halfWidth ? accumulator[row + h + 1] : 0);
+	}
+
+	// Cells with no more votes than this are left out when picking the most common width. A few pixels
+	// of noise line up at every width, only cells with a real pair in them should say which width is common
+	private static final int widthVoteFloor = 5;
+
+	// Fewest votes a rho bin needs for a pair of two to get over widthVoteFloor
+	private static final int minPairLine = widthVoteFloor / 2 + 1;
+
+	// Fraction of the scaled down threshold a coarse cell needs to be looked at more closely
+	private static final double coarseFraction = 0.5;
+
+	/**
+	 * Width bin with the most votes in cells that have more than minVotes
+	 */
+	private static int mostCommonWidth(int[] accumulator, int accumSize, int accumDepth, double minVotes)
+	{
+		int[] widthCount = new int[accumDepth];
+		for(int cell=0; cell<accumSize; cell+=accumDepth)
+		{
 			for (int k = 0; k < accumDepth; k++)
-				if(widthCount[k] > widthCount[maxWidthIndex])
-					maxWidthIndex = k;
-			
-			// Extract the rho's and theta's from the accumulator
-			List<Double> rhoList = new ArrayList<>();
-			List<Double> thetaList = new ArrayList<>();
-			for (int j = 0; j < accumHeight; j++)
 			{
-				for (int i = 0; i < accumWidth; i++)
-				{
-					int value = accumulator[j][i][maxWidthIndex];
-					if (value > threshold)
-					{
-						// Check to see if this point is a local maxima, as if
-						// it is not then the other point should be the line
-						// Prevents lines segment doubles
-						// r is the radius to check for local maxima
-						boolean localMaxima = true;
-						int r = maximaRadius;
-						for (int dx = -r; dx <= r; dx++)
-						{
-							for (int dy = -r; dy <= r; dy++)
-							{
-								// for(int dz=-r*5; dz<=r*5; dz++)
-								{
-									if (j + dy >= 0 && j + dy < accumHeight
-											&& i + dx >= 0
-											&& i + dx < accumWidth &&
-											// k+dz>=0 && k+dz<accumDepth &&
-											!(dx == 0 && dy == 0))
-									{
-										if (accumulator[j + dy][i + dx][maxWidthIndex] > value)
-											localMaxima = false;
-									}
-								}
-							}
-						}
-	
-						if (localMaxima)
-						{
-							rhoList.add((i - accumWidth / 2) * deltaRho);
-							thetaList.add(j * deltaTheta);
-						}
-					}
-				}
+				int value = accumulator[cell + k];
+				if(value > minVotes)
+					widthCount[k] += value;
 			}
-	
-			// Package as a point array for easy consumption
-			Point[] lines = new Point[rhoList.size()];
-			for (int i = 0; i < rhoList.size(); i++)
+		}
+
+		int maxWidthIndex = 0;
+		for (int k = 0; k < accumDepth; k++)
+			if(widthCount[k] > widthCount[maxWidthIndex])
+				maxWidthIndex = k;
+		return maxWidthIndex;
+	}
+
+	private static void mark(boolean[] cells, boolean[] rows, int rowStart, int rowEnd, int colStart, int colEnd,
+			int height, int width)
+	{
+		rowStart = Math.max(0, rowStart);
+		rowEnd = Math.min(height, rowEnd);
+		colStart = Math.max(0, colStart);
+		colEnd = Math.min(width, colEnd);
+		for (int j = rowStart; j < rowEnd; j++)
+		{
+			if(rows != null)
+				rows[j] = true;
+			for (int i = colStart; i < colEnd; i++)
+				cells[j * width + i] = true;
+		}
+	}
+
+	/**
+	 * @param orientations of the edge pixels, pixels that have one only vote for the steps near it, null to vote for every step
+	 */
+	private static void vote(int[] accumulator, int[] xs, int[] ys, int[] orientations, int edgeCount, ThetaTable thetaTable,
+			int thetaStart, int thetaEnd, double[] halfWidths, int[] widthIndices,
+			int accumWidth, int accumDepth, double deltaRho)
+	{
+		boolean oriented = orientations != null && 2 * thetaTable.orientationWindow + 1 < thetaTable.size;
+		for (int p = 0; p < edgeCount; p++)
+		{
+			double row = ys[p], col = xs[p];
+
+			if(oriented && orientations[p] != EdgeMap.noOrientation)
 			{
-				double rho = rhoList.get(i);
-				double theta = thetaList.get(i);
-				lines[i] = new Point(rho, theta);
+				// Steps past either end wrap around, the pixel's rho is worked out for whichever step they land on
+				int center = thetaTable.orientationStep(orientations[p]);
+				for (int k = -thetaTable.orientationWindow; k <= thetaTable.orientationWindow; k++)
+				{
+					int t = ((center + k) % thetaTable.size + thetaTable.size) % thetaTable.size;
+					if(t >= thetaStart && t < thetaEnd)
+						voteStep(accumulator, row, col, thetaTable, t, halfWidths, widthIndices, accumWidth, accumDepth, deltaRho);
+				}
+				continue;
 			}
-	
-			// Return accumulator if asked for
-			// if(accumulatorOut != null)
-			// accumulatorOut.set(accumulator);
-			return lines;
-		
+
+			for (int t = thetaStart; t < thetaEnd; t++)
+				voteStep(accumulator, row, col, thetaTable, t, halfWidths, widthIndices, accumWidth, accumDepth, deltaRho);
 		}
-		finally
+	}
+
+	private static void voteStep(int[] accumulator, double row, double col, ThetaTable thetaTable, int t,
+			double[] halfWidths, int[] widthIndices, int accumWidth, int accumDepth, double deltaRho)
+	{
+		double rho = row * thetaTable.rowFactor[t] + col * thetaTable.colFactor[t];
+		int thetaBase = thetaTable.thetaIndex[t] * accumWidth;
+		int rhoOffset = accumWidth / 2;
+
+		for (int w = 0; w < halfWidths.length; w++)
 		{
-			// Hint garbage collection to clean up those big accumulators
-			System.gc();
+			// The new rho in the center of the parallel lines
+			int rhoIndex = (int) Math.floor((rho + halfWidths[w]) / deltaRho) + rhoOffset;
+			accumulator[(thetaBase + rhoIndex) * accumDepth + widthIndices[w]] += 1;
 		}
 	}
 
-	// https://en.wikipedia.org/wiki/Distance_from_a_point_to_a_line
-	private static double originToLineDistance(double x1, double y1, double x2, double y2)
+	private static void voteInParallel(final int[] accumulator, final int[] xs, final int[] ys, final int[] orientations, final int edgeCount,
+			final ThetaTable thetaTable, int threads, final double[] halfWidths, final int[] widthIndices,
+			final int accumWidth, final int accumDepth, final double deltaRho)
 	{
-		double dx = x2 - x1, dy = y2 - y1;
-		double numer = x2 * y1 - y2 * x1;
-		double denom = Math.sqrt(dx * dx + dy * dy);
-		return numer / denom;
+		List<Future<?>> slices = new ArrayList<Future<?>>();
+		int sliceSize = (thetaTable.size + threads - 1) / threads;
+		int start = 0;
+		while(start < thetaTable.size)
+		{
+			int end = Math.min(start + sliceSize, thetaTable.size);
+
+			// Two theta steps can share a bin, keep them in the same slice so no row has two writers
+			while(end < thetaTable.size && thetaTable.thetaIndex[end] == thetaTable.thetaIndex[end - 1])
+				end++;
+
+			final int thetaStart = start, thetaEnd = end;
+			slices.add(votingPool.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					vote(accumulator, xs, ys, orientations, edgeCount, thetaTable, thetaStart, thetaEnd,
+							halfWidths, widthIndices, accumWidth, accumDepth, deltaRho);
+				}
+			}));
+			start = end;
+		}
+
+		try
+		{
+			for(Future<?> slice : slices)
+				slice.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new RuntimeException(e.getCause());
+		}
 	}
 }
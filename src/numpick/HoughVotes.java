@@ -0,0 +1,232 @@
+package numpick;
+
+import java.util.Arrays;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+/**
+ * The (rho, theta) votes of one image, kept so lines can be pulled out at any threshold
+ * without running the transform again.
+ * Voting and peak picking follow OpenCV's standard HoughLines, so for the same rho and theta steps
+ * {@link #lines(int)} gives the lines Imgproc.HoughLines would at that threshold.
+ *
+ * If the edge pixels carry their orientation each only votes for the angles near it, see {@link EdgeMap},
+ * and the lines are no longer exactly OpenCV's.
+ *
+ * Whether a cell is a peak doesn't depend on the threshold, only whether it is reported does.
+ * So the peaks are found once, sorted by votes, and a query is just the front of that list.
+ */
+public class HoughVotes
+{
+	private static final ThreadLocal<int[]> accumulatorLocal = new ThreadLocal<int[]>()
+	{
+		@Override
+		protected int[] initialValue()
+		{
+			return new int[1];
+		};
+	};
+
+	private int minThreshold;
+	// Peaks sorted by votes, most first
+	private int[] votes;
+	private float[] rhos;
+	private float[] thetas;
+
+	/**
+	 * Runs the transform on an edge image
+	 *
+	 * @param image edge image, non-zero pixels vote
+	 * @param rho distance resolution in pixels
+	 * @param theta angle resolution in radians
+	 * @param minThreshold the lowest threshold {@link #lines(int)} will be asked for, peaks at or below it are not kept
+	 */
+	public static HoughVotes build(Mat image, double rho, double theta, int minThreshold)
+	{
+		return build(EdgeMap.of(image), rho, theta, minThreshold, false);
+	}
+
+	/**
+	 * Runs the transform on an edge image
+	 *
+	 * @param image edge image, non-zero pixels vote
+	 * @param rho distance resolution in pixels
+	 * @param theta angle resolution in radians
+	 * @param minThreshold the lowest threshold {@link #lines(int)} will be asked for, peaks at or below it are not kept
+	 * @param wrapTheta compare the first and last theta rows to each other when picking peaks,
+	 * as (rho, theta) and (-rho, theta - PI) are the same line. Without it, lines close to vertical
+	 * can peak on both edges of the accumulator.
+	 */
+	public static HoughVotes build(Mat image, double rho, double theta, int minThreshold, boolean wrapTheta)
+	{
+		return build(EdgeMap.of(image), rho, theta, minThreshold, wrapTheta);
+	}
+
+	public static HoughVotes build(EdgeMap edgeMap, double rho, double theta, int minThreshold, boolean wrapTheta)
+	{
+		long start = System.nanoTime();
+
+		// Same precision and rounding as OpenCV's HoughLinesStandard
+		float rhoStep = (float) rho, thetaStep = (float) theta;
+		int width = edgeMap.getWidth(), height = edgeMap.getHeight();
+		int numAngle = (int) Math.rint(Math.PI / thetaStep);
+		int numRho = (int) Math.rint(((width + height) * 2 + 1) / rhoStep);
+		float irho = 1 / rhoStep;
+
+		float[] tabSin = new float[numAngle];
+		float[] tabCos = new float[numAngle];
+		float ang = 0;
+		for(int n=0; n<numAngle; n++, ang += thetaStep)
+		{
+			tabSin[n] = (float) (Math.sin(ang) * irho);
+			tabCos[n] = (float) (Math.cos(ang) * irho);
+		}
+
+		// The accumulator has a border of one cell all around so the peak test needs no bounds checks
+		int rowLength = numRho + 2;
+		int accumSize = (numAngle + 2) * rowLength;
+		int[] accumulator = accumulatorLocal.get();
+		if(accumulator.length < accumSize)
+		{
+			accumulator = new int[accumSize];
+			accumulatorLocal.set(accumulator);
+		}
+		else
+		{
+			Arrays.fill(accumulator, 0, accumSize, 0);
+		}
+
+		int[] xs = edgeMap.getXs();
+		int[] ys = edgeMap.getYs();
+		int[] orientations = edgeMap.getOrientations();
+		int edgeCount = edgeMap.getCount();
+		int rhoOffset = (numRho - 1) / 2;
+		// Angles either side of a pixel's orientation it votes for, when it has one
+		int window = (int) Math.ceil(Math.toRadians(EdgeMap.orientationTolerance) / thetaStep);
+		boolean oriented = edgeMap.isOriented() && 2 * window + 1 < numAngle;
+		for(int p=0; p<edgeCount; p++)
+		{
+			int x = xs[p], y = ys[p];
+			if(oriented && orientations[p] != EdgeMap.noOrientation)
+			{
+				// Angles past either end wrap around, the pixel's rho is worked out for whichever bin they land in
+				int center = (int) Math.round(Math.toRadians(orientations[p]) / thetaStep);
+				for(int k=-window; k<=window; k++)
+				{
+					int n = ((center + k) % numAngle + numAngle) % numAngle;
+					int r = (int) Math.rint(x * tabCos[n] + y * tabSin[n]) + rhoOffset;
+					accumulator[(n + 1) * rowLength + r + 1]++;
+				}
+				continue;
+			}
+
+			for(int n=0; n<numAngle; n++)
+			{
+				int r = (int) Math.rint(x * tabCos[n] + y * tabSin[n]) + rhoOffset;
+				accumulator[(n + 1) * rowLength + r + 1]++;
+			}
+		}
+
+		if(wrapTheta)
+		{
+			// The border row before the first angle is the last angle with rho mirrored, and the other way around
+			int last = numAngle * rowLength, first = rowLength, after = (numAngle + 1) * rowLength;
+			for(int r=0; r<numRho; r++)
+			{
+				int mirrored = numRho - 1 - r;
+				accumulator[r + 1] = accumulator[last + mirrored + 1];
+				accumulator[after + r + 1] = accumulator[first + mirrored + 1];
+			}
+		}
+
+		// Keep the local maxima, packed as votes in the high bits and cell in the low bits for sorting
+		int peakCount = 0;
+		long[] peaks = new long[64];
+		for(int n=0; n<numAngle; n++)
+		{
+			for(int r=0; r<numRho; r++)
+			{
+				int base = (n + 1) * rowLength + r + 1;
+				int value = accumulator[base];
+				if(value > minThreshold &&
+						value > accumulator[base - 1] && value >= accumulator[base + 1] &&
+						value > accumulator[base - rowLength] && value >= accumulator[base + rowLength])
+				{
+					if(peakCount == peaks.length)
+						peaks = Arrays.copyOf(peaks, peakCount * 2);
+					// Negate the votes so an ascending sort puts the most votes first and ties in cell order
+					peaks[peakCount++] = ((long) -value << 32) | base;
+				}
+			}
+		}
+		Arrays.sort(peaks, 0, peakCount);
+
+		HoughVotes houghVotes = new HoughVotes();
+		houghVotes.minThreshold = minThreshold;
+		houghVotes.votes = new int[peakCount];
+		houghVotes.rhos = new float[peakCount];
+		houghVotes.thetas = new float[peakCount];
+		for(int i=0; i<peakCount; i++)
+		{
+			int base = (int) peaks[i];
+			int n = base / rowLength - 1;
+			int r = base - (n + 1) * rowLength - 1;
+			houghVotes.votes[i] = (int) -(peaks[i] >> 32);
+			houghVotes.rhos[i] = (r - (numRho - 1) * 0.5f) * rhoStep;
+			houghVotes.thetas[i] = n * thetaStep;
+		}
+		Metrics.stage("hough votes").recordSince(start);
+		return houghVotes;
+	}
+
+	/**
+	 * @param threshold only cells with more votes than this are lines, must be at least the minimum it was built with
+	 * @return lines in (rho, theta) form, most votes first
+	 */
+	public Point[] lines(int threshold)
+	{
+		int count = count(threshold);
+		Point[] lines = new Point[count];
+		for(int i=0; i<count; i++)
+			lines[i] = new Point(rhos[i], thetas[i]);
+		return lines;
+	}
+
+	/**
+	 * @param threshold must be at least the minimum it was built with
+	 * @return how many lines have more votes than the threshold, they are the first ones
+	 */
+	public int count(int threshold)
+	{
+		if(threshold < minThreshold)
+			throw new IllegalArgumentException("Threshold " + threshold + " is below the minimum of " + minThreshold + " these votes were kept for");
+
+		// Votes are sorted, so the lines are a prefix
+		int low = 0, high = votes.length;
+		while(low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if(votes[mid] > threshold)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	public int getVotes(int i)
+	{
+		return votes[i];
+	}
+
+	public float getRho(int i)
+	{
+		return rhos[i];
+	}
+
+	public float getTheta(int i)
+	{
+		return thetas[i];
+	}
+}
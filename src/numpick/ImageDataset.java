@@ -0,0 +1,353 @@
+package numpick;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.opencv.core.Mat;
+
+/**
+ * The preprocessed images listed in a toothpickCounts.txt manifest, loaded as they are iterated over
+ * instead of all up front.
+ * {@link #loaders} background threads decode and preprocess up to {@link #prefetch} images ahead, as long as they fit in {@link #memoryBudget}.
+ * With more than one loader the samples come in the order they finish loading, not the manifest's.
+ * A sample's Mat is released when next moves past it, the last one when the iterator is closed,
+ * so only the images in the window are ever in native memory.
+ *
+ * Manifest lines are the 40 character file name, a space, then the toothpick count. Lines that can't be read are skipped.
+ */
+public class ImageDataset implements Iterable<ImageDataset.Sample>
+{
+	public static class Sample
+	{
+		public String filename;
+		public int count;
+		public double percentData;
+		// Only valid until the iterator moves on or release is called
+		public Mat image;
+
+		private long bytes;
+		private SampleIterator owner;
+
+		/**
+		 * Frees the image now instead of when the iterator moves on
+		 */
+		public void release()
+		{
+			owner.release(this);
+		}
+	}
+
+	private String manifest;
+	private String directory;
+	private EdgeMapCache cache;
+
+	// Start at the first full line after this many characters of the manifest
+	public long skip = 0;
+	// Stop after this many images, 0 for all of them
+	public int limit = 0;
+	// Images held at once, the ones being used included
+	public int prefetch = 4;
+	// Threads loading images, about as many as there are threads using them
+	public int loaders = 2;
+	// Bytes of image data loaded ahead, at least one image is always let through
+	public long memoryBudget = 64L << 20;
+	// Used when there is no cache
+	public ImagePreprocessor preprocessor = new ImagePreprocessor();
+
+	/**
+	 * @param manifest path of the toothpickCounts.txt file
+	 * @param directory the folder the file names in the manifest are relative to
+	 * @param cache where to get the preprocessed images from, null to preprocess every time
+	 */
+	public ImageDataset(String manifest, String directory, EdgeMapCache cache)
+	{
+		this.manifest = manifest;
+		this.directory = directory;
+		this.cache = cache;
+	}
+
+	/**
+	 * Starts loading in the background. Close the iterator if you stop before the end
+	 */
+	@Override
+	public SampleIterator iterator()
+	{
+		SampleIterator iterator = new SampleIterator();
+		iterator.start();
+		return iterator;
+	}
+
+	public class SampleIterator implements Iterator<Sample>, Closeable
+	{
+		private ArrayDeque<Sample> ready = new ArrayDeque<Sample>();
+		// Samples loaded and not yet released, including the current one
+		private int loaded;
+		private long loadedBytes;
+		private long lastBytes;
+		// Manifest lines being loaded, and handed out without failing so far
+		private int loading;
+		private int claimed;
+		private int running;
+		private BufferedReader reader;
+		private boolean done;
+		private boolean closed;
+		private Sample current;
+		// The consumer is in hasNext waiting for an image
+		private boolean waiting;
+
+		private void start()
+		{
+			running = Math.max(1, loaders);
+			for(int i=0; i<running; i++)
+			{
+				Thread loader = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						load();
+					}
+				}, "dataset-loader-" + i);
+				loader.setDaemon(true);
+				loader.start();
+			}
+		}
+
+		private void load()
+		{
+			AtomicReference<Double> percentData = new AtomicReference<Double>();
+			try
+			{
+				String line;
+				while((line = claim()) != null)
+				{
+					Sample sample = null;
+					try
+					{
+						sample = load(line, percentData);
+					}
+					catch (RuntimeException e)
+					{
+						System.out.println("Skipping manifest line \"" + line + "\": " + e);
+					}
+					if(!add(sample))
+						break;
+				}
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				finish();
+			}
+		}
+
+		// The image of one manifest line, null if there is none
+		private Sample load(String line, AtomicReference<Double> percentData)
+		{
+			Sample sample = new Sample();
+			sample.filename = directory + line.substring(0, 40);
+			sample.count = Integer.parseInt(line.substring(41));
+			sample.image = cache != null ? cache.processImage(sample.filename, percentData) :
+				preprocessor.processImage(sample.filename, null, percentData);
+			if(sample.image == null)
+				return null;
+
+			sample.percentData = percentData.get();
+			sample.bytes = sample.image.total() * sample.image.elemSize();
+			sample.owner = this;
+			return sample;
+		}
+
+		/**
+		 * Blocks the loader until the window has room for another image of the last one's size, then hands it the next line
+		 *
+		 * @return null when there are no more lines or the iterator was closed
+		 */
+		private synchronized String claim() throws IOException
+		{
+			try
+			{
+				while(!closed && full())
+					wait();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			if(closed || (limit > 0 && claimed >= limit))
+				return null;
+
+			if(reader == null)
+			{
+				reader = new BufferedReader(new FileReader(manifest));
+				if(skip > 0)
+				{
+					reader.skip(skip);
+					reader.readLine();
+				}
+			}
+			String line = reader.readLine();
+			if(line == null)
+				return null;
+			loading++;
+			claimed++;
+			return line;
+		}
+
+		// Whether the window has no room for another image of the last one's size. The image handed out last
+		// doesn't count while the consumer waits in hasNext, it is only released by next and the window would never open
+		private boolean full()
+		{
+			int held = loaded + loading;
+			long bytes = loadedBytes;
+			if(waiting && current != null)
+			{
+				held--;
+				bytes -= current.bytes;
+			}
+			return held > 0 && (held >= prefetch || bytes + (loading + 1) * lastBytes > memoryBudget);
+		}
+
+		// Hands a loaded sample to the consumers, null if its line had no image
+		private synchronized boolean add(Sample sample)
+		{
+			loading--;
+			notifyAll();
+			if(sample == null)
+			{
+				claimed--;
+				return !closed;
+			}
+			if(closed)
+			{
+				sample.image.release();
+				sample.image = null;
+				return false;
+			}
+			ready.add(sample);
+			loaded++;
+			loadedBytes += sample.bytes;
+			lastBytes = sample.bytes;
+			return true;
+		}
+
+		// The last loader to stop closes the manifest and ends the iteration
+		private synchronized void finish()
+		{
+			if(--running > 0)
+				return;
+			try
+			{
+				if(reader != null)
+					reader.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			done = true;
+			notifyAll();
+		}
+
+		private synchronized void release(Sample sample)
+		{
+			if(sample.image == null)
+				return;
+			sample.image.release();
+			sample.image = null;
+			loaded--;
+			loadedBytes -= sample.bytes;
+			notifyAll();
+		}
+
+		/**
+		 * Waits for the next image to be loaded, the one handed out last stays valid
+		 */
+		@Override
+		public synchronized boolean hasNext()
+		{
+			try
+			{
+				if(ready.isEmpty() && !done)
+				{
+					waiting = true;
+					notifyAll();
+				}
+				while(ready.isEmpty() && !done)
+					wait();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			finally
+			{
+				waiting = false;
+			}
+			return !ready.isEmpty();
+		}
+
+		/**
+		 * Releases the image handed out last, then hands out the next one
+		 */
+		@Override
+		public synchronized Sample next()
+		{
+			if(!hasNext())
+				throw new NoSuchElementException();
+			if(current != null)
+				release(current);
+			current = ready.poll();
+			return current;
+		}
+
+		/**
+		 * Like next, but the caller owns the sample and has to release it, the iterator doesn't when it moves on.
+		 * Any number of threads can take from the same iterator.
+		 *
+		 * @return the next sample, or null when there are no more
+		 */
+		public synchronized Sample take()
+		{
+			try
+			{
+				while(ready.isEmpty() && !done)
+					wait();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			return ready.poll();
+		}
+
+		/**
+		 * Stops loading and releases every image still held
+		 */
+		@Override
+		public synchronized void close()
+		{
+			closed = true;
+			if(current != null)
+			{
+				release(current);
+				current = null;
+			}
+			while(!ready.isEmpty())
+				release(ready.poll());
+			notifyAll();
+		}
+	}
+}
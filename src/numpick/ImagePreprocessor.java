@@ -1,79 +1,114 @@
 package numpick;
 
+import java.io.File;
+import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicReference;
 
-import javax.swing.text.Position;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Size;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
+/**
+ * Turns a photo into the edge image the line detection runs on.
+ * Instances never change after construction, so one can be shared by any number of threads.
+ */
 public class ImagePreprocessor
 {
-	public static boolean pictureOutput = true;
-	public static String outputFolder = "processedPictures/";
-	static String suffix = "";
+	// Null when no debug pictures are wanted
+	private final DebugImageWriter debugImages;
+	private final String suffix;
+	// Edge pixels carry the direction of the gradient instead of 255, see EdgeMap
+	private final boolean orientation;
 	
-	static ImageProcessor gray = new ImageProcessor()
+	/**
+	 * Describes what processImage does to a file, change it whenever the pipeline changes
+	 * so anything cached from the old pipeline is thrown away
+	 */
+	public static final String pipelineDescription = "reduced gray decode, resize 700, blur 3x3, canny 50/150";
+	
+	// Added to the description when edge pixels carry their orientation
+	private static final String orientationDescription = ", sobel 3x3 orientation";
+	
+	// Larger dimension of the images everything runs on
+	static final int size = 700;
+	
+	// Reduced decodes shrink by 1, 2, 4 or 8 while decoding, much cheaper than decoding everything and resizing.
+	// Imgcodecs.IMREAD_REDUCED_GRAYSCALE_2 and the rest by value, so this still builds against OpenCV 3 releases
+	// from before they were added
+	private static final int[] grayReadFlags = { Imgcodecs.IMREAD_GRAYSCALE, 16, 32, 64 };
+	private static final int[] colorReadFlags = { Imgcodecs.IMREAD_COLOR, 17, 33, 65 };
+	// Cleared the first time a reduced decode comes back at full size, the library doesn't know the flags then
+	// and every image is decoded whole and shrunk by the resize step instead
+	private static volatile boolean reducedDecodes = true;
+	
+	final ImageProcessor gray = new ImageProcessor()
 	{
 		@Override
-		public Mat process(Mat src)
+		public Mat process(Mat src, Mat dst)
 		{
-			Mat gray = new Mat();
-			Imgproc.cvtColor(src, gray, Imgproc.COLOR_BGR2GRAY);
-			if(pictureOutput)
-				Imgcodecs.imwrite(outputFolder+"gray"+suffix+".png", gray);
-			return gray;
+			// Already gray if it was decoded that way
+			if(src.channels() == 1)
+				return src;
+			
+			long start = System.nanoTime();
+			Imgproc.cvtColor(src, dst, Imgproc.COLOR_BGR2GRAY);
+			Metrics.stage("gray").recordSince(start);
+			snapshot("gray", dst);
+			return dst;
 		}
 	};
 	
-	static ImageProcessor eqHist = new ImageProcessor()
+	final ImageProcessor eqHist = new ImageProcessor()
 	{
 		@Override
-		public Mat process(Mat src)
+		public Mat process(Mat src, Mat dst)
 		{
-			Mat eqHist = new Mat();
-			Imgproc.equalizeHist(src, eqHist);
-			if(pictureOutput)
-				Imgcodecs.imwrite(outputFolder+"eqHist"+suffix+".png", eqHist);
-			return eqHist;
+			long start = System.nanoTime();
+			Imgproc.equalizeHist(src, dst);
+			Metrics.stage("eqHist").recordSince(start);
+			snapshot("eqHist", dst);
+			return dst;
 		}
 	};
 	
-	static ImageProcessor blur = new ImageProcessor()
+	final ImageProcessor blur = new ImageProcessor()
 	{
 		@Override
-		public Mat process(Mat src)
+		public Mat process(Mat src, Mat dst)
 		{
-			Mat blur = new Mat();
-			Imgproc.blur(src, blur, new Size(3, 3));
-			if(pictureOutput) 
-				Imgcodecs.imwrite(outputFolder+"blur"+suffix+".png", blur);
-			return blur;
+			long start = System.nanoTime();
+			Imgproc.blur(src, dst, new Size(3, 3));
+			Metrics.stage("blur").recordSince(start);
+			snapshot("blur", dst);
+			return dst;
 		}
 	};
 	
-	static ImageProcessor canny = new ImageProcessor()
+	final ImageProcessor canny = new ImageProcessor()
 	{
 		@Override
-		public Mat process(Mat src)
+		public Mat process(Mat src, Mat dst)
 		{
 			int lowThreshold = 50;
-			Mat canny = new Mat();
-			Imgproc.Canny(src, canny, lowThreshold, lowThreshold*3);
-			if(pictureOutput) 
-				Imgcodecs.imwrite(outputFolder+"canny"+suffix+".png", canny);
-			return canny;
+			long start = System.nanoTime();
+			Imgproc.Canny(src, dst, lowThreshold, lowThreshold*3);
+			Metrics.stage("canny").recordSince(start);
+			snapshot("canny", dst);
+			return dst;
 		}
 	};
 	
-	static ImageProcessor resize = new ImageProcessor()
+	final ImageProcessor resize = new ImageProcessor()
 	{
 		@Override
-		public Mat process(Mat src)
+		public Mat process(Mat src, Mat dst)
 		{
-			int size = 700;
 			// Resize so larger dimension is size
 			int dim = Math.max(src.width(), src.height());
 			
@@ -84,63 +119,256 @@ public class ImagePreprocessor
 			int width = (int)(scale * src.width());
 			int height = (int)(scale * src.height());
 			
-			Mat dst = new Mat();
+			long start = System.nanoTime();
 			Imgproc.resize(src, dst, new Size(width, height));
-			if(pictureOutput) 
-				Imgcodecs.imwrite(outputFolder+"resize"+suffix+".png", dst);
+			Metrics.stage("resize").recordSince(start);
+			snapshot("resize", dst);
 			return dst;
 		}
 	};
 	
-	public static Mat processImage(String filename)
+	// Kept for the life of the instance so every thread keeps its intermediate buffers between images
+	final ImageProcess preProcessor = new ImageProcess(resize, gray, blur, canny);
+	// Everything before Canny, for when the gradients are needed too
+	final ImageProcess smoothing = new ImageProcess(resize, gray, blur);
+	
+	// Per thread buffers for the orientation step
+	private static class Gradients
+	{
+		Mat blurred = new Mat(), dx = new Mat(), dy = new Mat();
+		byte[] edges = new byte[0];
+		short[] gx = new short[0], gy = new short[0];
+	}
+	
+	private static final ThreadLocal<Gradients> gradientsLocal = new ThreadLocal<Gradients>()
+	{
+		@Override
+		protected Gradients initialValue()
+		{
+			return new Gradients();
+		};
+	};
+	
+	/**
+	 * A pipeline that doesn't save any debug pictures
+	 */
+	public ImagePreprocessor()
+	{
+		this(null, "");
+	}
+	
+	/**
+	 * @param debugImages where to send a picture of every step, null for none
+	 * @param suffix added to the name of every debug picture
+	 */
+	public ImagePreprocessor(DebugImageWriter debugImages, String suffix)
+	{
+		this(debugImages, suffix, false);
+	}
+	
+	/**
+	 * @param debugImages where to send a picture of every step, null for none
+	 * @param suffix added to the name of every debug picture
+	 * @param orientation store the gradient direction in every edge pixel, so the Hough transforms
+	 * only vote for angles close to it
+	 */
+	public ImagePreprocessor(DebugImageWriter debugImages, String suffix, boolean orientation)
+	{
+		this.debugImages = debugImages;
+		this.suffix = suffix;
+		this.orientation = orientation;
+	}
+	
+	/**
+	 * @return what this instance's processImage does, {@link #pipelineDescription} plus any options
+	 */
+	public String getPipelineDescription()
+	{
+		return orientation ? pipelineDescription + orientationDescription : pipelineDescription;
+	}
+	
+	public Mat processImage(String filename)
 	{
 		return processImage(filename, null, null);
 	}
 	
-	public static Mat processImage(String filename, Mat raw, AtomicReference<Double> percentData)
+	public Mat processImage(String filename, Mat raw, AtomicReference<Double> percentData)
 	{
 		try
 		{
+			// One decode, in colour only if the raw preview is wanted
+			Mat img = decode(filename, raw != null);
+			
 			if(raw != null)
 			{
-				Imgcodecs.imread(filename).copyTo(raw);
-				resize.process(raw).copyTo(raw);
+				Mat resized = resize.process(img, raw);
+				if(resized != raw)
+					resized.copyTo(raw);
 			}
 			
-			Mat img = Imgcodecs.imread(filename);
-			
-			if(pictureOutput) 
+			if(debugImages != null) 
 			{
-				Imgcodecs.imwrite(outputFolder+"raw"+suffix+".png", img);
+				snapshot("raw", img);
 				System.out.println(filename);
 			}
-			ImageProcess preProcessor = new ImageProcess(resize, gray, blur, canny);
-			Mat preProcessedImage = preProcessor.process(img);
-			
-			if(percentData != null)
+			Mat edges = preprocess(img, percentData);
+			img.release();
+			return edges;
+		}
+		catch(Exception e)
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads an image file, shrunk while decoding as far as it can be while staying at least {@link #size} across.
+	 * OpenCV only knows how since 3.2, older versions get the whole image
+	 * 
+	 * @param color decode in colour, otherwise gray
+	 * @return the image, empty if it could not be read
+	 */
+	public static Mat decode(String filename, boolean color)
+	{
+		return decode(filename, color, size);
+	}
+	
+	/**
+	 * Same as {@link #decode(String, boolean)}, staying at least minSize across instead
+	 * 
+	 * @param minSize Integer.MAX_VALUE for the full resolution
+	 */
+	public static Mat decode(String filename, boolean color, int minSize)
+	{
+		long start = System.nanoTime();
+		int scale = 0;
+		int dim = largerDimension(filename);
+		while(reducedDecodes && scale < 3 && dim >> (scale + 1) >= minSize)
+			scale++;
+		
+		Mat image = Imgcodecs.imread(filename, color ? colorReadFlags[scale] : grayReadFlags[scale]);
+		// A reduced decode rounds up, anything bigger wasn't reduced at all
+		if(scale > 0 && !image.empty() && Math.max(image.width(), image.height()) > (dim + (1 << scale) - 1) >> scale)
+		{
+			System.out.println("Reduced decoding not supported by this OpenCV, decoding at full size");
+			reducedDecodes = false;
+		}
+		Metrics.stage("decode").recordSince(start);
+		return image;
+	}
+	
+	// Reads just the header, 0 if the format isn't known
+	private static int largerDimension(String filename)
+	{
+		try
+		{
+			ImageInputStream in = ImageIO.createImageInputStream(new File(filename));
+			if(in == null)
+				return 0;
+			try
 			{
-				int dataCount = 0;
-				byte[] pixel = new byte[1];
-				for (int j = 0; j < preProcessedImage.rows(); j++)
+				Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+				if(!readers.hasNext())
+					return 0;
+				ImageReader reader = readers.next();
+				try
+				{
+					reader.setInput(in, true, true);
+					return Math.max(reader.getWidth(0), reader.getHeight(0));
+				}
+				finally
 				{
-					for (int i = 0; i < preProcessedImage.cols(); i++)
-					{
-						int val;
-						if (preProcessedImage.get(i, j, pixel) > 0 && (val = (int) pixel[0] & 0xFF) > 0)
-						{
-							dataCount++;
-						}
-					}
+					reader.dispose();
 				}
-				int totalPixels = preProcessedImage.width() * preProcessedImage.height();
-				percentData.set((double)dataCount/totalPixels);
 			}
-			
-			return preProcessedImage;
+			finally
+			{
+				in.close();
+			}
 		}
-		catch(Exception e)
+		catch (Exception e)
 		{
-			return null;
+			return 0;
+		}
+	}
+	
+	/**
+	 * Runs the pipeline on an image that is already decoded
+	 * 
+	 * @param img colour or gray image as read by imread
+	 * @param percentData optional, gets the fraction of edge pixels
+	 * @return the edge image
+	 */
+	public Mat preprocess(Mat img, AtomicReference<Double> percentData)
+	{
+		return preprocess(img, new Mat(), percentData);
+	}
+	
+	/**
+	 * Runs the pipeline on an image that is already decoded, writing the edges into dst.
+	 * Once dst and this thread's buffers have been through an image of the same size nothing new is allocated.
+	 * 
+	 * @param img colour or gray image as read by imread
+	 * @param dst gets the edge image
+	 * @param percentData optional, gets the fraction of edge pixels
+	 * @return dst
+	 */
+	public Mat preprocess(Mat img, Mat dst, AtomicReference<Double> percentData)
+	{
+		Mat preProcessedImage;
+		if(orientation)
+		{
+			Gradients gradients = gradientsLocal.get();
+			Mat blurred = smoothing.process(img, gradients.blurred);
+			preProcessedImage = canny.process(blurred, dst);
+			orient(blurred, preProcessedImage, gradients);
+		}
+		else
+		{
+			preProcessedImage = preProcessor.process(img, dst);
+		}
+		
+		if(percentData != null)
+		{
+			percentData.set(EdgeMap.of(preProcessedImage).getPercentData());
 		}
+		
+		return preProcessedImage;
+	}
+	
+	/**
+	 * Replaces every edge pixel with the direction of the Sobel gradient there, as {@link EdgeMap#encodeOrientation(int, int)} packs it
+	 */
+	private void orient(Mat blurred, Mat edges, Gradients gradients)
+	{
+		long start = System.nanoTime();
+		Imgproc.Sobel(blurred, gradients.dx, CvType.CV_16S, 1, 0);
+		Imgproc.Sobel(blurred, gradients.dy, CvType.CV_16S, 0, 1);
+		
+		int total = (int) edges.total();
+		if(gradients.edges.length < total)
+		{
+			gradients.edges = new byte[total];
+			gradients.gx = new short[total];
+			gradients.gy = new short[total];
+		}
+		edges.get(0, 0, gradients.edges);
+		gradients.dx.get(0, 0, gradients.gx);
+		gradients.dy.get(0, 0, gradients.gy);
+		
+		for(int i=0; i<total; i++)
+		{
+			if(gradients.edges[i] != 0)
+				gradients.edges[i] = EdgeMap.encodeOrientation(gradients.gx[i], gradients.gy[i]);
+		}
+		edges.put(0, 0, gradients.edges);
+		Metrics.stage("orientation").recordSince(start);
+		snapshot("orientation", edges);
+	}
+	
+	private void snapshot(String name, Mat image)
+	{
+		if(debugImages != null)
+			debugImages.write(name + suffix + ".png", image);
 	}
 }
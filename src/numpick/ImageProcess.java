@@ -6,20 +6,38 @@ public class ImageProcess implements ImageProcessor
 {
 	ImageProcessor[] processors;
 	
+	// Intermediate images go back and forth between two buffers per thread,
+	// they keep their native memory from one image to the next
+	private ThreadLocal<Mat[]> buffers = new ThreadLocal<Mat[]>()
+	{
+		@Override
+		protected Mat[] initialValue()
+		{
+			return new Mat[] { new Mat(), new Mat() };
+		};
+	};
+	
 	public ImageProcess(ImageProcessor ...imageProcessors)
 	{
 		this.processors = imageProcessors;
 	}
 	
 	@Override
-	public Mat process(Mat src)
+	public Mat process(Mat src, Mat dst)
 	{
+		Mat[] buffer = buffers.get();
 		Mat m = src;
 		
 		for(int i=0; i<processors.length; i++)
-			m = processors[i].process(m);
+		{
+			// Never write over the image being read
+			Mat target = i == processors.length - 1 ? dst : m == buffer[0] ? buffer[1] : buffer[0];
+			m = processors[i].process(m, target);
+		}
 		
-		return m;
+		if(m != dst)
+			m.copyTo(dst);
+		return dst;
 	}
 
 }
@@ -4,5 +4,14 @@ import org.opencv.core.Mat;
 
 public interface ImageProcessor
 {
-	Mat process(Mat src);
+	/**
+	 * @param dst where to write the result, reused if it already has the right size and type
+	 * @return the result, dst or src if there was nothing to do
+	 */
+	Mat process(Mat src, Mat dst);
+	
+	default Mat process(Mat src)
+	{
+		return process(src, new Mat());
+	}
 }
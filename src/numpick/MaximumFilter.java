@@ -0,0 +1,149 @@
+package numpick;
+
+import java.util.Arrays;
+
+/**
+ * Finds the peaks of a 2-D accumulator, the cells above a threshold that no cell within a square radius has more votes than.
+ *
+ * Instead of comparing every candidate to its (2r+1)^2 neighbours, the maximum over the square is taken for every cell,
+ * a sliding maximum along the rows and then along the columns. Each is done with the van Herk/Gil-Werman algorithm:
+ * the line is cut into blocks as long as the window, a window covers the end of one block and the start of the next,
+ * so its maximum is a suffix maximum and a prefix maximum of the blocks. That is about three comparisons per cell whatever the radius.
+ * A cell is a peak when it equals the maximum around it, the same test as checking that no neighbour is larger.
+ *
+ * Cells past the edges don't count, nothing wraps around.
+ */
+public class MaximumFilter
+{
+	private static class Buffers
+	{
+		int[] maxima = new int[0];
+		int[] rows = new int[0];
+		int[] padded = new int[0];
+		int[] prefix = new int[0];
+		int[] suffix = new int[0];
+		int[] peaks = new int[64];
+	}
+
+	private static final ThreadLocal<Buffers> buffersLocal = new ThreadLocal<Buffers>()
+	{
+		@Override
+		protected Buffers initialValue()
+		{
+			return new Buffers();
+		};
+	};
+
+	/**
+	 * Cell (row, col) of the accumulator is at offset + (row * width + col) * stride,
+	 * so one width slice of HoughParallelLines' accumulator is offset = width index, stride = depth.
+	 *
+	 * @return row * width + col of every peak, in row major order
+	 */
+	public static int[] peaks(int[] accumulator, int offset, int stride, int height, int width, int radius, int threshold)
+	{
+		Buffers buffers = buffersLocal.get();
+		int cells = height * width;
+		maximum(accumulator, offset, stride, height, width, radius, buffers);
+
+		int count = 0;
+		int[] peaks = buffers.peaks;
+		int[] maxima = buffers.maxima;
+		for(int cell=0; cell<cells; cell++)
+		{
+			int value = accumulator[offset + cell * stride];
+			if(value > threshold && value == maxima[cell])
+			{
+				if(count == peaks.length)
+					peaks = buffers.peaks = Arrays.copyOf(peaks, count * 2);
+				peaks[count++] = cell;
+			}
+		}
+		return Arrays.copyOf(peaks, count);
+	}
+
+	private static void maximum(int[] accumulator, int offset, int stride, int height, int width, int radius, Buffers buffers)
+	{
+		int cells = height * width;
+		if(buffers.maxima.length < cells)
+		{
+			buffers.maxima = new int[cells];
+			buffers.rows = new int[cells];
+		}
+		int window = 2 * radius + 1;
+		// A padded row for the first pass, all the padded rows for the second
+		int line = width + 2 * radius;
+		int all = Math.max(line, (height + 2 * radius) * width);
+		if(buffers.padded.length < line)
+			buffers.padded = new int[line];
+		if(buffers.prefix.length < all)
+		{
+			buffers.prefix = new int[all];
+			buffers.suffix = new int[all];
+		}
+		int[] padded = buffers.padded, prefix = buffers.prefix, suffix = buffers.suffix, rows = buffers.rows;
+
+		// Along each row
+		int length = width + 2 * radius;
+		for(int j=0; j<height; j++)
+		{
+			// Nothing past the ends
+			Arrays.fill(padded, 0, radius, Integer.MIN_VALUE);
+			int src = offset + j * width * stride;
+			for(int k=0; k<width; k++)
+				padded[radius + k] = accumulator[src + k * stride];
+			Arrays.fill(padded, radius + width, length, Integer.MIN_VALUE);
+
+			// Running maximum from the start of each block, and from the end of each block
+			for(int k=0, block=0; k<length; k++, block++)
+			{
+				if(block == window)
+					block = 0;
+				prefix[k] = block == 0 ? padded[k] : Math.max(prefix[k - 1], padded[k]);
+			}
+			for(int k=length-1, block=(length-1)%window; k>=0; k--, block--)
+			{
+				suffix[k] = block == window - 1 || k == length - 1 ? padded[k] : Math.max(suffix[k + 1], padded[k]);
+				if(block == 0)
+					block = window;
+			}
+
+			// The window of c is padded[c .. c + 2 * radius], the end of one block and the start of the next
+			int dst = j * width;
+			for(int c=0; c<width; c++)
+				rows[dst + c] = Math.max(suffix[c], prefix[c + 2 * radius]);
+		}
+
+		// Then along the columns, a whole row at a time so the memory is read in order.
+		// Padded row k is row k - radius, or nothing
+		length = height + 2 * radius;
+		for(int k=0, block=0; k<length; k++, block++)
+		{
+			if(block == window)
+				block = 0;
+			int row = k - radius, base = k * width;
+			for(int i=0; i<width; i++)
+			{
+				int value = row >= 0 && row < height ? rows[row * width + i] : Integer.MIN_VALUE;
+				prefix[base + i] = block == 0 ? value : Math.max(prefix[base - width + i], value);
+			}
+		}
+		for(int k=length-1, block=(length-1)%window; k>=0; k--, block--)
+		{
+			int row = k - radius, base = k * width;
+			for(int i=0; i<width; i++)
+			{
+				int value = row >= 0 && row < height ? rows[row * width + i] : Integer.MIN_VALUE;
+				suffix[base + i] = block == window - 1 || k == length - 1 ? value : Math.max(suffix[base + width + i], value);
+			}
+			if(block == 0)
+				block = window;
+		}
+		for(int j=0; j<height; j++)
+		{
+			int base = j * width, ahead = (j + 2 * radius) * width;
+			for(int i=0; i<width; i++)
+				buffers.maxima[base + i] = Math.max(suffix[base + i], prefix[ahead + i]);
+		}
+	}
+}
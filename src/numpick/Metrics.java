@@ -0,0 +1,154 @@
+package numpick;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide histograms of how long each stage takes and how many lines and clusters each image gives.
+ * Recording is lock-free, so the stages record every call.
+ * A snapshot can be written as JSON or in the Prometheus text format.
+ */
+public class Metrics
+{
+	private static final ConcurrentHashMap<String, Histogram> stages = new ConcurrentHashMap<String, Histogram>();
+	private static final ConcurrentHashMap<String, Histogram> distributions = new ConcurrentHashMap<String, Histogram>();
+
+	/**
+	 * @return the nanosecond latency histogram of a stage
+	 */
+	public static Histogram stage(String name)
+	{
+		return get(stages, name);
+	}
+
+	/**
+	 * @return the histogram of a per image quantity, like the number of lines found
+	 */
+	public static Histogram distribution(String name)
+	{
+		return get(distributions, name);
+	}
+
+	private static Histogram get(ConcurrentHashMap<String, Histogram> histograms, String name)
+	{
+		Histogram histogram = histograms.get(name);
+		if(histogram == null)
+		{
+			histogram = new Histogram();
+			Histogram existing = histograms.putIfAbsent(name, histogram);
+			if(existing != null)
+				histogram = existing;
+		}
+		return histogram;
+	}
+
+	public static void reset()
+	{
+		for(Histogram histogram : stages.values())
+			histogram.reset();
+		for(Histogram histogram : distributions.values())
+			histogram.reset();
+	}
+
+	/**
+	 * Writes everything recorded so far, as JSON if the name ends in .json and as Prometheus text otherwise
+	 */
+	public static void write(String filename) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new FileWriter(filename));
+		try
+		{
+			if(filename.endsWith(".json"))
+				writeJson(out);
+			else
+				writePrometheus(out);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	public static void writeJson(PrintWriter out)
+	{
+		out.println("{");
+		out.println("  \"stageSeconds\": {");
+		writeJsonGroup(out, sorted(stages), 1e-9);
+		out.println("  },");
+		out.println("  \"perImage\": {");
+		writeJsonGroup(out, sorted(distributions), 1);
+		out.println("  }");
+		out.println("}");
+	}
+
+	private static void writeJsonGroup(PrintWriter out, Map<String, Histogram> histograms, double unit)
+	{
+		int i = 0;
+		for(Map.Entry<String, Histogram> entry : histograms.entrySet())
+		{
+			Histogram h = entry.getValue();
+			out.printf(Locale.ROOT, "    \"%s\": {\"count\": %d, \"mean\": %s, \"p50\": %s, \"p90\": %s, \"p99\": %s, \"max\": %s}%s\n",
+					entry.getKey(), h.getCount(), number(h.getMean() * unit),
+					number(h.getQuantile(0.5) * unit), number(h.getQuantile(0.9) * unit),
+					number(h.getQuantile(0.99) * unit), number(h.getMax() * unit),
+					++i < histograms.size() ? "," : "");
+		}
+	}
+
+	public static void writePrometheus(PrintWriter out)
+	{
+		out.println("# HELP numpick_stage_seconds Time spent in each processing stage per call");
+		out.println("# TYPE numpick_stage_seconds histogram");
+		for(Map.Entry<String, Histogram> entry : sorted(stages).entrySet())
+			writePrometheusHistogram(out, "numpick_stage_seconds", "stage", entry.getKey(), entry.getValue(), 1e-9);
+
+		for(Map.Entry<String, Histogram> entry : sorted(distributions).entrySet())
+		{
+			String name = "numpick_" + entry.getKey();
+			out.println("# TYPE " + name + " histogram");
+			writePrometheusHistogram(out, name, null, null, entry.getValue(), 1);
+		}
+	}
+
+	private static void writePrometheusHistogram(PrintWriter out, String name, String label, String value, Histogram h, double unit)
+	{
+		String labels = label == null ? "" : label + "=\"" + value + "\",";
+		// Every bucket up to the highest one with something in it, so the bounds are the same from scrape to scrape.
+		// The counts are cumulative
+		long[] counts = new long[h.getBucketCount()];
+		int last = -1;
+		for(int i=0; i<counts.length; i++)
+		{
+			counts[i] = h.getBucket(i);
+			if(counts[i] != 0)
+				last = i;
+		}
+		long cumulative = 0;
+		for(int i=0; i<=last; i++)
+		{
+			cumulative += counts[i];
+			out.printf(Locale.ROOT, "%s_bucket{%sle=\"%s\"} %d\n", name, labels, number(Histogram.upperBound(i) * unit), cumulative);
+		}
+		// Other threads may still be recording, so the total comes from the same bucket reads
+		out.printf(Locale.ROOT, "%s_bucket{%sle=\"+Inf\"} %d\n", name, labels, cumulative);
+
+		String plain = label == null ? "" : "{" + label + "=\"" + value + "\"}";
+		out.printf(Locale.ROOT, "%s_sum%s %s\n", name, plain, number(h.getSum() * unit));
+		out.printf(Locale.ROOT, "%s_count%s %d\n", name, plain, cumulative);
+	}
+
+	private static Map<String, Histogram> sorted(Map<String, Histogram> histograms)
+	{
+		return new TreeMap<String, Histogram>(histograms);
+	}
+
+	private static String number(double value)
+	{
+		return String.format(Locale.ROOT, "%.6g", value);
+	}
+}
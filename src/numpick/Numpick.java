@@ -8,20 +8,37 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicReference;
 
-import numpick.ParameterizedGeneticAlgorithm.Evaluator;
+import numpick.ParameterizedGeneticAlgorithm.IncrementalEvaluator;
 import numpick.ParameterizedGeneticAlgorithm.Parameter;
 
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
-import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
 public class Numpick
 {
+	// Write pictures of every step and of the lines found, when there is a raw image to draw them on
+	public static boolean pictureOutput = true;
+	public static String outputFolder = "processedPictures/";
+	
+	// Debug pictures from every thread go through here, the ones it can't keep up with are skipped
+	private static DebugImageWriter debugImages;
+	
+	// Made the first time a picture is written, so nothing is set up unless pictureOutput is on
+	static synchronized DebugImageWriter debugImages()
+	{
+		if(debugImages == null)
+			debugImages = new DebugImageWriter(outputFolder, 16);
+		return debugImages;
+	}
+	
 	public static void main(String[] args)
 	{
 		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
@@ -34,38 +51,124 @@ public class Numpick
 	// Harness for testing one picture
 	public static void pictureTest()
 	{
-		ImagePreprocessor.pictureOutput = true;
+		ImagePreprocessor preprocessor = new ImagePreprocessor(pictureOutput ? debugImages() : null, "");
 		
 		Mat raw = new Mat();
 		AtomicReference<Double> dataPercent = new AtomicReference<Double>();
 		//Mat img = ImagePreprocessor.processImage("pictures/miscount.png", raw, dataPercent);
 		List<Point> normalLines = new ArrayList<Point>();
-		Mat img = ImagePreprocessor.processImage("unityPictures/2f9778a4-9b76-495f-8d55-1e714615b958.png", raw, dataPercent);
+		Mat img = preprocessor.processImage("unityPictures/2f9778a4-9b76-495f-8d55-1e714615b958.png", raw, dataPercent);
 		
-		Mat cw = new Mat();
-		img.copyTo(cw);;
-		Core.transpose(cw, cw);
-		Core.flip(cw, cw, 1);
-		
-		int count = countToothpicks(img, cw, 80, 0.0236, dataPercent.get(), raw, normalLines);
+		int count = countToothpicks(img, 80, 0.0236, dataPercent.get(), raw, normalLines);
 		System.out.println("Count: " + count);
+		
+		try
+		{
+			if(pictureOutput)
+				debugImages().flush();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
 	}
 	
-	static void transformLineCW(Point p, double cwImageWidth)
+	// Harness for counting one photo at full resolution
+	public static void tiledPictureTest() throws InterruptedException
 	{
-		double rho = p.x;
-		double theta = p.y;
-		double h = rho / Math.cos(Math.PI - theta);
-		double rhoPrime = (h + cwImageWidth) * rho / h;
-		double thetaPrime = theta > Math.PI/2 ? theta - Math.PI/2 : theta + Math.PI/2;
-		double x = h / Math.cos(theta);
-		if (thetaPrime > Math.PI/2 && rho > x)
-			rhoPrime *= -1;
-		
-		p.x = rhoPrime;
-		p.y = thetaPrime;
+		TiledCounter counter = new TiledCounter(new ImagePreprocessor());
+		int count = counter.countToothpicks("pictures/20151104_155628.jpg", 80, 0.0236);
+		System.out.println("Count: " + count);
 	}
-	
+
+	// Harness for the tile seams: one toothpick crossing several tiles, far from the origin too, has to count as one
+	public static void tiledSeamTest() throws InterruptedException
+	{
+		TiledCounter counter = new TiledCounter(new ImagePreprocessor());
+		int size = 4 * counter.tileSize;
+		int failures = 0;
+		for(int degrees=0; degrees<180; degrees+=7)
+		{
+			for(int corner=0; corner<size; corner+=2 * counter.tileSize)
+			{
+				// Through a seam crossing, long enough to reach into the tiles around it
+				double theta = Math.toRadians(degrees);
+				double cx = corner + counter.tileSize + 0.5, cy = corner + counter.tileSize + 0.5;
+				double dx = Math.cos(theta) * 0.75 * counter.tileSize, dy = Math.sin(theta) * 0.75 * counter.tileSize;
+				Mat gray = Mat.zeros(size, size, CvType.CV_8UC1);
+				Imgproc.line(gray, new Point(cx - dx, cy - dy), new Point(cx + dx, cy + dy), new Scalar(255), 5);
+				int count = counter.countToothpicks(gray, 80, 0.0236);
+				gray.release();
+				if(count != 1)
+				{
+					System.out.println(degrees + " degrees through (" + cx + ", " + cy + "): " + count);
+					failures++;
+				}
+			}
+		}
+		System.out.println("Seam failures: " + failures);
+	}
+
+	// Harness for HoughParallelLines.runCoarseToFine: how many of run's lines it misses or adds on random edge maps
+	public static void coarseToFineTest()
+	{
+		Random random = new Random(1);
+		int size = 700, trials = 12, differing = 0;
+		for(int trial=0; trial<trials; trial++)
+		{
+			// Pairs of one pixel edges 6 apart, and scattered noise pixels
+			byte[] pixels = new byte[size * size];
+			int pairs = 5 + random.nextInt(20), length = 80 + random.nextInt(200);
+			for(int k=0; k<pairs; k++)
+			{
+				double x0 = random.nextInt(size), y0 = random.nextInt(size), theta = random.nextDouble() * Math.PI;
+				for(int s=-length/2; s<length/2; s++)
+				{
+					for(int w : new int[] { 0, 6 })
+					{
+						int x = (int) Math.round(x0 + s * Math.cos(theta) + w * Math.sin(theta));
+						int y = (int) Math.round(y0 + s * Math.sin(theta) - w * Math.cos(theta));
+						if(x >= 0 && y >= 0 && x < size && y < size)
+							pixels[y * size + x] = (byte) 255;
+					}
+				}
+			}
+			int noise = random.nextInt(20000);
+			for(int k=0; k<noise; k++)
+				pixels[random.nextInt(size * size)] = (byte) 255;
+			Mat edges = new Mat(size, size, CvType.CV_8UC1);
+			edges.put(0, 0, pixels);
+
+			Point[] full = HoughParallelLines.run(edges, 1, Math.PI/180, 0.25, 15, 80, 10);
+			Point[] coarse = HoughParallelLines.runCoarseToFine(edges, 1, Math.PI/180, 0.25, 15, 80, 10, 4);
+			edges.release();
+
+			int missing = full.length - sharedLines(full, coarse), spurious = coarse.length - sharedLines(coarse, full);
+			if(missing > 0 || spurious > 0)
+				differing++;
+			System.out.println("run " + full.length + " lines, coarse to fine misses " + missing + " and adds " + spurious);
+		}
+		System.out.println(differing + " of " + trials + " edge maps differ");
+	}
+
+	// Lines of a that are also in b
+	private static int sharedLines(Point[] a, Point[] b)
+	{
+		int shared = 0;
+		for(Point line : a)
+		{
+			for(Point other : b)
+			{
+				if(line.x == other.x && line.y == other.y)
+				{
+					shared++;
+					break;
+				}
+			}
+		}
+		return shared;
+	}
+
 	static boolean approx(double d, double b, double delta)
 	{
 		return Math.abs(d - b) < delta;
@@ -73,78 +176,85 @@ public class Numpick
 	
 	public static void trainWithGA()
 	{
-		ImagePreprocessor.pictureOutput = false;
+		// With one Hough pass every line is found once instead of twice, and the best pair moved to around 75-80
+		// and 0.0275-0.03 on synthetic edge maps, so both ranges reach past that
+		Parameter houghThreshold = new Parameter("houghThreshold", 60, 150, 2);
+		Parameter splitThreshold = new Parameter("splitThreshold", 0.005, 0.045, 0.001);
+		//Parameter splitThreshold = new Parameter("splitThreshold", 1, 2, 0.05);
 		
-		// Build the data for the GA
-		final List<Mat> images = new ArrayList<Mat>();
+		// Only the threshold changes between individuals, so vote once per image and keep the votes.
+		// The images themselves are streamed and released as soon as they have been voted on
+		final List<HoughVotes> votes = new ArrayList<HoughVotes>();
+		final List<Size> sizes = new ArrayList<Size>();
 		final List<Integer> counts = new ArrayList<Integer>();
-		final List<Double> dataPercents = new ArrayList<Double>();
-		AtomicReference<Double> dataPercent = new AtomicReference<Double>();
+		EdgeMapCache edgeMapCache = EdgeMapCache.open("unityPictures/edgeMaps.cache");
+		ImageDataset dataset = new ImageDataset("unityPictures/toothpickCounts.txt", "unityPictures/", edgeMapCache);
+		dataset.limit = 500;
+		ImageDataset.SampleIterator samples = dataset.iterator();
 		try
 		{
-			BufferedReader reader = new BufferedReader(new FileReader("unityPictures/toothpickCounts.txt"));
-			String line;
-			while((line = reader.readLine()) != null)
+			while(samples.hasNext())
 			{
-				String filename = "unityPictures/" + line.substring(0, 40);
-				int actualToothpicks = Integer.parseInt(line.substring(41));
-				Mat image = ImagePreprocessor.processImage(filename, null, dataPercent); 
-				
-				if(image != null)
-				{
-					images.add(image);
-					counts.add(actualToothpicks);
-					dataPercents.add(dataPercent.get());
-					System.out.println(dataPercent.get());
-				}
-				
-				if(images.size() >= 500)
-					break;
+				ImageDataset.Sample sample = samples.next();
+				votes.add(HoughVotes.build(sample.image, 1, Math.PI/180, (int)houghThreshold.start, true));
+				sizes.add(sample.image.size());
+				counts.add(sample.count);
+				System.out.println(sample.percentData);
 			}
-			reader.close();
-			
+			edgeMapCache.save();
 		}
 		catch (Exception e)
 		{
 			e.printStackTrace();
 		}
-
-		System.out.println("Image processing done.");
+		finally
+		{
+			samples.close();
+		}
 		
-		Parameter houghThreshold = new Parameter("houghThreshold", 80, 150, 2);
-		Parameter splitThreshold = new Parameter("splitThreshold", 0.005, 0.03, 0.001);
-		//Parameter splitThreshold = new Parameter("splitThreshold", 1, 2, 0.05);
+		System.out.println("Hough votes done.");
 		
-		Parameter[] params = ParameterizedGeneticAlgorithm.run(20, 0.9, new Evaluator()
+		Parameter[] params = ParameterizedGeneticAlgorithm.run(20, 0.9, new IncrementalEvaluator()
 		{
 			public double evaluate(Parameter[] parameters)
 			{
-				int houghThreshold = 0;
-				double splitThreshold = 0;
-				
-				if(parameters[0].name.equals("houghThreshold"))
-					houghThreshold = (int)parameters[0].value;
-				if(parameters[1].name.equals("splitThreshold"))
-					splitThreshold = parameters[1].value;
-				
 				for(int i=0; i<parameters.length; i++)
 				{
 					System.out.print(parameters[i] + " ");
 				}
 
-				int n = images.size();	
+				int n = votes.size();	
 				double fitness = 0;
 				for(int i=0; i<n; i++)
 				{
-					int estimatedToothpicks = countToothpicks(images.get(i), houghThreshold, dataPercents.get(i), splitThreshold);
-					int difference = Math.abs(estimatedToothpicks - counts.get(i));
-					fitness += 1 / ((double)difference/counts.get(i) + 1);
+					fitness += evaluateSample(parameters, i);
 				}
 				
 				fitness /= n; 
 				System.out.printf("Fitness: %.2f\n", fitness);
 				return fitness;
 			}
+			
+			public int sampleCount()
+			{
+				return votes.size();
+			}
+			
+			public double evaluateSample(Parameter[] parameters, int i)
+			{
+				int houghThreshold = 0;
+				double splitThreshold = 0;
+				
+				if(parameters[0].name.equals("houghThreshold"))
+					houghThreshold = (int)parameters[0].value;
+				if(parameters[1].name.equals("splitThreshold"))
+					splitThreshold = parameters[1].value;
+				
+				Size size = sizes.get(i);
+				int estimatedToothpicks = countToothpicks(votes.get(i), (int)size.width, (int)size.height, houghThreshold, splitThreshold);
+				int difference = Math.abs(estimatedToothpicks - counts.get(i));
+				return 1 / ((double)difference/counts.get(i) + 1);
+			}
 		}, houghThreshold, splitThreshold);
 		
 		for(int i=0; i<params.length; i++)
@@ -155,132 +265,174 @@ public class Numpick
 	
 	public static void test()
 	{
-		ImagePreprocessor.pictureOutput = false;
+		int houghThreshold = 80;
+		double splitThreshold = 0.0236;
+		// Count straight from the files with the staged pipeline, no edge map cache
+		boolean pipeline = false;
 		
-		// Build the data
-		final List<Mat> images = new ArrayList<Mat>();
-		final List<Mat> imagesCW = new ArrayList<Mat>();
-		final List<Integer> counts = new ArrayList<Integer>();
-		final List<Double> dataPercents = new ArrayList<Double>();
-		AtomicReference<Double> dataPercent = new AtomicReference<Double>();
+		// Spread the images over every core, only running stats of the error are kept
+		EdgeMapCache edgeMapCache = EdgeMapCache.open("unityPictures/edgeMaps.cache");
+		ImageDataset dataset = new ImageDataset("unityPictures/toothpickCounts.txt", "unityPictures/", edgeMapCache);
+		dataset.skip = 20000;
+		dataset.limit = 101;
+		AccuracyEvaluation evaluation = new AccuracyEvaluation(houghThreshold, splitThreshold);
+		dataset.prefetch = Math.max(dataset.prefetch, evaluation.threads * 2);
+		dataset.loaders = evaluation.threads;
+		
+		RunningStats stats = new RunningStats();
 		try
 		{
-			BufferedReader reader = new BufferedReader(new FileReader("unityPictures/toothpickCounts.txt"));
-			String line;
-			reader.skip(20000);
-			reader.readLine();
-			while((line = reader.readLine()) != null)
+			if(pipeline)
 			{
-				String filename = "unityPictures/" + line.substring(0, 40);
-				int actualToothpicks = Integer.parseInt(line.substring(41));
-				Mat image = ImagePreprocessor.processImage(filename, null, dataPercent); 
-				
-				if(image != null)
-				{
-					Mat cw = new Mat();
-					image.copyTo(cw);;
-					Core.transpose(cw, cw);
-					Core.flip(cw, cw, 1);
-					
-					images.add(image);
-					imagesCW.add(cw);
-					counts.add(actualToothpicks);
-					dataPercents.add(dataPercent.get());
-				}
-				
-				if(images.size() > 100)
-					break;
+				stats = evaluatePipeline("unityPictures/toothpickCounts.txt", "unityPictures/", dataset.skip, dataset.limit,
+						houghThreshold, splitThreshold);
+			}
+			else
+			{
+				stats = evaluation.run(dataset, "accuracy.csv");
+				edgeMapCache.save();
 			}
-			reader.close();
-			
 		}
 		catch (Exception e)
 		{
 			e.printStackTrace();
 		}
 		
-		int houghThreshold = 80;
-		double splitThreshold = 0.0236;
-		
-		int n = images.size();	
-		
-		double totalFitness = 0;
-		double[] fitnesses = new double[n];
-		double minFitness = Double.MAX_VALUE;
-		double maxFitness = Double.MIN_VALUE;
+		System.out.printf("Fitness stats\nAverage: %.2f\nStandard deviation: %.2f\nMax: %.2f\nMin: %.2f\n",
+				stats.getMean(), stats.getStandardDeviation(), stats.getMax(), stats.getMin());
 		
-		for(int i=0; i<n; i++)
+		try
 		{
-			int estimatedToothpicks = countToothpicks(images.get(i), imagesCW.get(i), houghThreshold, dataPercents.get(i), splitThreshold, null, null);
-			int difference = Math.abs(estimatedToothpicks - counts.get(i));
-			fitnesses[i] = (double)difference/counts.get(i); 
-			totalFitness += fitnesses[i];
-			minFitness = Math.min(minFitness, fitnesses[i]);
-			maxFitness = Math.max(maxFitness, fitnesses[i]);
+			Metrics.write("metrics.json");
+			Metrics.write("metrics.prom");
 		}
-		double averageFitness = totalFitness/n;
-		
-		double variance = 0;
-		for(int i=0; i<n; i++)
+		catch (IOException e)
 		{
-			variance += (fitnesses[i] - averageFitness) * (fitnesses[i] - averageFitness);		
+			e.printStackTrace();
 		}
-		variance /= n;
-		double standardDeviation = Math.sqrt(variance); 
-		
-		System.out.printf("Fitness stats\nAverage: %.2f\nStandard deviation: %.2f\nMax: %.2f\nMin: %.2f\n", averageFitness, standardDeviation, maxFitness, minFitness);
 	}
 	
 	
+	/**
+	 * Same images and error as the dataset evaluation in test, counted by a CountingPipeline
+	 */
+	static RunningStats evaluatePipeline(String manifest, String directory, long skip, int limit,
+			int houghThreshold, double splitThreshold) throws IOException, InterruptedException
+	{
+		List<String> files = new ArrayList<String>();
+		List<Integer> counts = new ArrayList<Integer>();
+		BufferedReader reader = new BufferedReader(new FileReader(manifest));
+		try
+		{
+			if(skip > 0)
+			{
+				reader.skip(skip);
+				reader.readLine();
+			}
+			String line;
+			while((line = reader.readLine()) != null && (limit <= 0 || files.size() < limit))
+			{
+				try
+				{
+					String file = directory + line.substring(0, 40);
+					counts.add(Integer.parseInt(line.substring(41)));
+					files.add(file);
+				}
+				catch (RuntimeException e)
+				{
+					System.out.println("Skipping manifest line \"" + line + "\": " + e);
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		
+		CountingPipeline pipeline = new CountingPipeline(houghThreshold, splitThreshold);
+		List<CountingPipeline.Result> results = pipeline.run(files);
+		pipeline.printReport();
+		
+		RunningStats stats = new RunningStats();
+		for(int i=0; i<results.size(); i++)
+		{
+			int estimated = results.get(i).count;
+			if(estimated >= 0)
+				stats.add((double) Math.abs(estimated - counts.get(i)) / counts.get(i));
+		}
+		return stats;
+	}
+	
 	public static int countToothpicks(Mat preProcessedImage, int houghThreshold, double percentData, double splitThreshold)
 	{
-		return countToothpicks(preProcessedImage, null, houghThreshold, splitThreshold, percentData, null, null);
+		return countToothpicks(preProcessedImage, houghThreshold, splitThreshold, percentData, null, null);
 	}
 	
-	public static int countToothpicks(Mat preProcessedImage, Mat cw, int houghThreshold, double splitThreshold, double percentData, Mat raw, List<Point> lines)
+	public static int countToothpicks(Mat preProcessedImage, int houghThreshold, double splitThreshold, double percentData, Mat raw, List<Point> lines)
 	{
-		int count = 0;
 		boolean customHough = false;
+		// Only votes at full resolution around the peaks of a 4 times coarser pass
+		boolean coarseToFine = true;
 		Point[] lineArray;
-		Point[] lineArrayCW = null;
 		
-		if(customHough)
+		if(customHough && coarseToFine)
+		{
+			lineArray = HoughParallelLines.runCoarseToFine(preProcessedImage, 1, Math.PI/180, 0.25, 15, 80, 10, 4);
+		}
+		else if(customHough)
 		{	
 			lineArray = HoughParallelLines.run(preProcessedImage, 1, Math.PI/180, 0.25, 15, 80, 10);
 		}
 		else
 		{
-			Mat temp = new Mat();
-			Imgproc.HoughLines(preProcessedImage, temp, 1, Math.PI/180, houghThreshold);
-			lineArray = makePoints(temp);
-			
-			Mat temp2 = new Mat();
-			Imgproc.HoughLines(cw, temp2, 1, Math.PI/180, houghThreshold);
-			lineArrayCW = makePoints(temp2);
-			
-			for(Point p : lineArrayCW)
-				transformLineCW(p, cw.width());
+			// One pass over every angle, with the ends of the theta range treated as neighbours
+			// so lines close to vertical are picked out as cleanly as any other
+			lineArray = HoughVotes.build(preProcessedImage, 1, Math.PI/180, houghThreshold, true).lines(houghThreshold);
 		}
 		
-		if(ImagePreprocessor.pictureOutput && raw != null)
+		return countLines(lineArray, preProcessedImage.width(), preProcessedImage.height(), splitThreshold, raw, lines);
+	}
+	
+	/**
+	 * Counts from votes kept by HoughVotes, so houghThreshold can be swept without running the transform again
+	 * 
+	 * @param votes votes of the image
+	 * @param width width of the image
+	 * @param height height of the image
+	 */
+	public static int countToothpicks(HoughVotes votes, int width, int height, int houghThreshold, double splitThreshold)
+	{
+		return countLines(votes.lines(houghThreshold), width, height, splitThreshold, null, null);
+	}
+	
+	static int countLines(Point[] lineArray, int width, int height, double splitThreshold, Mat raw, List<Point> lines)
+	{
+		int count = 0;
+		boolean gridClustering = false;
+		
+		if(pictureOutput && raw != null)
 		{
-			drawLines(ImagePreprocessor.outputFolder + "hough.png", lineArray, raw);
+			drawLines("hough.png", lineArray, raw);
 		}
 		
 		List<Point> toothpicks = new ArrayList<Point>();
-		Point[] allLines = new Point[lineArray.length + lineArrayCW.length];
-		System.arraycopy(lineArray, 0, allLines, 0, lineArray.length);
-		System.arraycopy(lineArrayCW, 0, allLines, lineArray.length, lineArrayCW.length);
 		
-		double maxRho = Math.max(preProcessedImage.width(), preProcessedImage.height()) * Math.sqrt(2);
-		count = HierarchicalClustering.countClusters(allLines, splitThreshold, maxRho, Math.PI, toothpicks);
+		double maxRho = Math.max(width, height) * Math.sqrt(2);
+		long start = System.nanoTime();
+		if(gridClustering)
+			count = GridClustering.countClusters(lineArray, splitThreshold, maxRho, Math.PI, toothpicks);
+		else
+			count = HierarchicalClustering.countClusters(lineArray, splitThreshold, maxRho, Math.PI, toothpicks);
+		Metrics.stage("clustering").recordSince(start);
+		Metrics.distribution("lines_per_image").record(lineArray.length);
+		Metrics.distribution("clusters_per_image").record(count);
 		
 		Point[] toothpickArray = new Point[toothpicks.size()];
 		toothpicks.toArray(toothpickArray);
 
-		if(ImagePreprocessor.pictureOutput && raw != null)
+		if(pictureOutput && raw != null)
 		{
-			drawLines(ImagePreprocessor.outputFolder + "toothpickLines.png", toothpickArray, raw);
+			drawLines("toothpickLines.png", toothpickArray, raw);
 		}
 		
 		if(lines != null)
@@ -291,7 +443,6 @@ public class Numpick
 		return count;
 	}
 	
-	
 	static void drawLines(String name, Point[] lines, Mat raw)
 	{
 		Mat out = new Mat();
@@ -308,7 +459,7 @@ public class Numpick
 			Imgproc.line(out, start, end, new Scalar(0,0,0), 1);
 		}
 		
-		Imgcodecs.imwrite(name, out);
+		debugImages().submit(name, out);
 	}
 	
 	static Point[] makePoints(Mat lines)
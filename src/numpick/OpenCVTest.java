@@ -18,49 +18,45 @@ public class OpenCVTest
 	static ImageProcessor gray = new ImageProcessor()
 	{
 		@Override
-		public Mat process(Mat src)
+		public Mat process(Mat src, Mat dst)
 		{
-			Mat gray = new Mat();
-			Imgproc.cvtColor(src, gray, Imgproc.COLOR_BGR2GRAY);
-			Imgcodecs.imwrite(outputFolder+"gray"+suffix+".png", gray);
-			return gray;
+			Imgproc.cvtColor(src, dst, Imgproc.COLOR_BGR2GRAY);
+			Imgcodecs.imwrite(outputFolder+"gray"+suffix+".png", dst);
+			return dst;
 		}
 	};
 	
 	static ImageProcessor eqHist = new ImageProcessor()
 	{
 		@Override
-		public Mat process(Mat src)
+		public Mat process(Mat src, Mat dst)
 		{
-			Mat eqHist = new Mat();
-			Imgproc.equalizeHist(src, eqHist);
-			Imgcodecs.imwrite(outputFolder+"eqHist"+suffix+".png", eqHist);
-			return eqHist;
+			Imgproc.equalizeHist(src, dst);
+			Imgcodecs.imwrite(outputFolder+"eqHist"+suffix+".png", dst);
+			return dst;
 		}
 	};
 	
 	static ImageProcessor blur = new ImageProcessor()
 	{
 		@Override
-		public Mat process(Mat src)
+		public Mat process(Mat src, Mat dst)
 		{
-			Mat blur = new Mat();
-			Imgproc.blur(src, blur, new Size(3, 3));
-			Imgcodecs.imwrite(outputFolder+"blur"+suffix+".png", blur);
-			return blur;
+			Imgproc.blur(src, dst, new Size(3, 3));
+			Imgcodecs.imwrite(outputFolder+"blur"+suffix+".png", dst);
+			return dst;
 		}
 	};
 	
 	static ImageProcessor canny = new ImageProcessor()
 	{
 		@Override
-		public Mat process(Mat src)
+		public Mat process(Mat src, Mat dst)
 		{
 			int lowThreshold = 50;
-			Mat canny = new Mat();
-			Imgproc.Canny(src, canny, lowThreshold, lowThreshold*3);
-			Imgcodecs.imwrite(outputFolder+"canny"+suffix+".png", canny);
-			return canny;
+			Imgproc.Canny(src, dst, lowThreshold, lowThreshold*3);
+			Imgcodecs.imwrite(outputFolder+"canny"+suffix+".png", dst);
+			return dst;
 		}
 	};
 	
@@ -2,8 +2,16 @@ package numpick;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.Lock;
 
 public class ParameterizedGeneticAlgorithm
@@ -19,6 +27,8 @@ public class ParameterizedGeneticAlgorithm
 		double bestFitness;
 		double [] fitnesses;
 		double [] cumulativeFitnesses;
+		// Fitness of every individual evaluated so far, keyed by its quantized parameters
+		Map<List<Long>, Double> fitnessCache = new HashMap<List<Long>, Double>();
 		
 		public void initialize(int size, Parameter... prototypes)
 		{
@@ -118,38 +128,172 @@ public class ParameterizedGeneticAlgorithm
 			}
 		}
 		
-		public void evaluate(Evaluator evaluator)
-		{			
-			// Thread the evaluation to speed it up
-			InidividualEvaluationThread[] thread = new InidividualEvaluationThread[size];
+		public void evaluate(Evaluator evaluator, ExecutorService executor)
+		{
+			// Individuals are snapped to their parameters' step sizes, so repeats are only evaluated once
+			List<List<Long>> keys = new ArrayList<List<Long>>(size);
+			Map<List<Long>, Parameter[]> uncached = new LinkedHashMap<List<Long>, Parameter[]>();
+			double eliteFitness = 0;
 			
 			for(int i=0; i<size; i++)
 			{
-				thread[i] = new InidividualEvaluationThread(population[i], evaluator);
-				thread[i].start();
+				List<Long> key = new ArrayList<Long>(population[i].length);
+				for(int j=0; j<population[i].length; j++)
+					key.add(population[i][j].quantize());
+				keys.add(key);
+				
+				Double cached = fitnessCache.get(key);
+				if(cached != null)
+					eliteFitness = Math.max(eliteFitness, cached);
+				else if(!uncached.containsKey(key))
+					uncached.put(key, population[i]);
 			}
 			
+			// Individuals dropped from a race only get an estimate, which is never cached
+			Map<List<Long>, Double> estimates = new HashMap<List<Long>, Double>();
+			if(evaluator instanceof IncrementalEvaluator)
+				race((IncrementalEvaluator) evaluator, executor, uncached, eliteFitness, estimates);
+			else
+				evaluateFully(evaluator, executor, uncached);
+			
 			for(int i=0; i<size; i++)
+			{
+				Double fitness = fitnessCache.get(keys.get(i));
+				boolean complete = fitness != null;
+				if(!complete)
+					fitness = estimates.get(keys.get(i));
+				fitnesses[i] = fitness != null ? fitness : 0;
+				if(complete && fitnesses[i] > bestFitness)
+				{
+					best = i;
+					bestFitness = fitnesses[i];
+				}
+			}
+		}
+		
+		private void evaluateFully(Evaluator evaluator, ExecutorService executor, Map<List<Long>, Parameter[]> individuals)
+		{
+			Map<List<Long>, Future<Double>> pending = new HashMap<List<Long>, Future<Double>>();
+			for(Map.Entry<List<Long>, Parameter[]> entry : individuals.entrySet())
+				pending.put(entry.getKey(), executor.submit(new IndividualEvaluation(entry.getValue(), evaluator)));
+			
+			for(Map.Entry<List<Long>, Future<Double>> entry : pending.entrySet())
 			{
 				try
 				{
-					thread[i].join();
+					fitnessCache.put(entry.getKey(), entry.getValue().get());
 				} 
 				catch (InterruptedException e)
 				{
 					e.printStackTrace();
 				}
+				catch (ExecutionException e)
+				{
+					e.printStackTrace();
+				}
 			}
+		}
+		
+		/**
+		 * Evaluates the individuals on a doubling number of samples, and after every round drops the ones
+		 * whose upper confidence bound is below the best lower confidence bound.
+		 * https://en.wikipedia.org/wiki/Racing_algorithm
+		 */
+		private void race(IncrementalEvaluator evaluator, ExecutorService executor, Map<List<Long>, Parameter[]> individuals,
+				double eliteFitness, Map<List<Long>, Double> estimates)
+		{
+			int firstRound = 50;
+			// Width of the confidence bounds in standard errors
+			double confidence = 2;
 			
-			for(int i=0; i<size; i++)
+			// Every individual sees the samples in the same shuffled order
+			int samples = evaluator.sampleCount();
+			int[] order = new int[samples];
+			for(int i=0; i<samples; i++)
+				order[i] = i;
+			for(int i=samples-1; i>0; i--)
 			{
-				fitnesses[i] = thread[i].getFitness();
-				if(fitnesses[i] > bestFitness)
+				int j = rand.nextInt(i + 1);
+				int temp = order[i];
+				order[i] = order[j];
+				order[j] = temp;
+			}
+			
+			List<List<Long>> racing = new ArrayList<List<Long>>(individuals.keySet());
+			// Sum and sum of squares of the sample fitnesses so far
+			Map<List<Long>, double[]> totals = new HashMap<List<Long>, double[]>();
+			for(List<Long> key : racing)
+				totals.put(key, new double[2]);
+			
+			int evaluated = 0;
+			int roundEnd = Math.min(firstRound, samples);
+			while(!racing.isEmpty() && evaluated < samples)
+			{
+				Map<List<Long>, Future<double[]>> pending = new HashMap<List<Long>, Future<double[]>>();
+				for(List<Long> key : racing)
+					pending.put(key, executor.submit(new SampleEvaluation(individuals.get(key), evaluator, order, evaluated, roundEnd)));
+				
+				List<List<Long>> failed = new ArrayList<List<Long>>();
+				for(List<Long> key : racing)
 				{
-					best = i;
-					bestFitness = fitnesses[i];
+					try
+					{
+						double[] round = pending.get(key).get();
+						totals.get(key)[0] += round[0];
+						totals.get(key)[1] += round[1];
+					}
+					catch (InterruptedException e)
+					{
+						e.printStackTrace();
+						failed.add(key);
+					}
+					catch (ExecutionException e)
+					{
+						e.printStackTrace();
+						failed.add(key);
+					}
+				}
+				racing.removeAll(failed);
+				evaluated = roundEnd;
+				
+				if(evaluated < samples)
+				{
+					double bestLowerBound = eliteFitness;
+					for(List<Long> key : racing)
+						bestLowerBound = Math.max(bestLowerBound, mean(totals.get(key), evaluated) - confidence * standardError(totals.get(key), evaluated));
+					
+					List<List<Long>> dropped = new ArrayList<List<Long>>();
+					for(List<Long> key : racing)
+					{
+						double mean = mean(totals.get(key), evaluated);
+						if(mean + confidence * standardError(totals.get(key), evaluated) < bestLowerBound)
+						{
+							estimates.put(key, mean);
+							dropped.add(key);
+						}
+					}
+					racing.removeAll(dropped);
 				}
+				
+				roundEnd = (int) Math.min(2L * roundEnd, samples);
 			}
+			
+			for(List<Long> key : racing)
+				fitnessCache.put(key, mean(totals.get(key), samples));
+			
+			System.out.printf("Raced %d individuals, %d evaluated on all %d samples\n", individuals.size(), racing.size(), samples);
+		}
+		
+		private double mean(double[] totals, int n)
+		{
+			return totals[0] / n;
+		}
+		
+		private double standardError(double[] totals, int n)
+		{
+			double mean = totals[0] / n;
+			double variance = Math.max(totals[1] / n - mean * mean, 0);
+			return Math.sqrt(variance / n);
 		}
 		
 		public double getFitness()
@@ -162,27 +306,51 @@ public class ParameterizedGeneticAlgorithm
 			return population[best];
 		}
 		
-		private class InidividualEvaluationThread extends Thread
+		private class IndividualEvaluation implements Callable<Double>
 		{
 			private Parameter[] individual;
 			private Evaluator eval;
-			private double fitness;
 			
-			public InidividualEvaluationThread(Parameter[] individual, Evaluator eval)
+			public IndividualEvaluation(Parameter[] individual, Evaluator eval)
 			{
 				this.individual = individual;
 				this.eval = eval;
 			}
 
 			@Override
-			public void run()
+			public Double call()
 			{
-				fitness = eval.evaluate(individual);
+				return eval.evaluate(individual);
+			}
+		}
+		
+		private class SampleEvaluation implements Callable<double[]>
+		{
+			private Parameter[] individual;
+			private IncrementalEvaluator eval;
+			private int[] order;
+			private int from, to;
+			
+			public SampleEvaluation(Parameter[] individual, IncrementalEvaluator eval, int[] order, int from, int to)
+			{
+				this.individual = individual;
+				this.eval = eval;
+				this.order = order;
+				this.from = from;
+				this.to = to;
 			}
 			
-			public double getFitness()
+			@Override
+			public double[] call()
 			{
-				return fitness;
+				double sum = 0, sumOfSquares = 0;
+				for(int i=from; i<to; i++)
+				{
+					double fitness = eval.evaluateSample(individual, order[i]);
+					sum += fitness;
+					sumOfSquares += fitness * fitness;
+				}
+				return new double[] { sum, sumOfSquares };
 			}
 		}
 	}
@@ -192,6 +360,20 @@ public class ParameterizedGeneticAlgorithm
 		public double evaluate(Parameter[] parameters);
 	}
 	
+	/**
+	 * An evaluator whose fitness is the mean of a fitness per sample, such as one per training image.
+	 * Lets individuals be raced on growing subsets of the samples, so hopeless ones stop early.
+	 */
+	public static interface IncrementalEvaluator extends Evaluator
+	{
+		public int sampleCount();
+		
+		/**
+		 * Called from several threads at once, like evaluate
+		 */
+		public double evaluateSample(Parameter[] parameters, int sample);
+	}
+	
 	public static class Parameter
 	{
 		String name;
@@ -210,6 +392,7 @@ public class ParameterizedGeneticAlgorithm
 		public void initialize()
 		{
 			this.value = start + (end - start) * rand.nextDouble();
+			snap();
 		}
 		
 		public void mutate()
@@ -220,6 +403,24 @@ public class ParameterizedGeneticAlgorithm
 				value = start;
 			if(value > end)
 				value = end;
+			snap();
+		}
+		
+		/**
+		 * Values only ever land on steps of changeRate from start, so individuals with the same steps
+		 * are evaluated with exactly the same values and can share a cached fitness
+		 */
+		private void snap()
+		{
+			value = Math.min(start + quantize() * changeRate, end);
+		}
+		
+		/**
+		 * @return the number of changeRate steps from start, the value is already on one
+		 */
+		public long quantize()
+		{
+			return Math.round((value - start) / changeRate);
 		}
 		
 		public void copy(Parameter other)
@@ -248,21 +449,37 @@ public class ParameterizedGeneticAlgorithm
 	
 	public static Parameter[] run(int populationSize, double targetFitness, Evaluator evaluator, Parameter... params)
 	{
-		Population population = new Population();
-		population.initialize(populationSize, params);
-		population.evaluate(evaluator);
-		
-		int gen = 0;
-		while(population.getFitness() < targetFitness)
+		return run(populationSize, targetFitness, Runtime.getRuntime().availableProcessors(), evaluator, params);
+	}
+	
+	/**
+	 * @param threads the most individuals evaluated at the same time
+	 */
+	public static Parameter[] run(int populationSize, double targetFitness, int threads, Evaluator evaluator, Parameter... params)
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			Population population = new Population();
+			population.initialize(populationSize, params);
+			population.evaluate(evaluator, executor);
+			
+			int gen = 0;
+			while(population.getFitness() < targetFitness)
+			{
+				System.out.printf("Generation %d\n", gen++);
+				population.select();
+				population.crossover();
+				population.mutate();
+				population.evaluate(evaluator, executor);
+			}
+			
+			return population.getBest();
+		}
+		finally
 		{
-			System.out.printf("Generation %d\n", gen++);
-			population.select();
-			population.crossover();
-			population.mutate();
-			population.evaluate(evaluator);
+			executor.shutdown();
 		}
-		
-		return population.getBest();
 	}
 	
 }
@@ -0,0 +1,85 @@
+package numpick;
+
+/**
+ * Count, mean, variance, min and max of a stream of values without keeping the values.
+ * Uses Welford's update, and two partial results can be merged, so each thread can keep its own and combine them at the end.
+ * https://en.wikipedia.org/wiki/Algorithms_for_calculating_variance#Parallel_algorithm
+ */
+public class RunningStats
+{
+	private long count;
+	private double mean;
+	// Sum of squared differences from the mean
+	private double m2;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+
+	public void add(double value)
+	{
+		count++;
+		double delta = value - mean;
+		mean += delta / count;
+		m2 += delta * (value - mean);
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+	}
+
+	/**
+	 * Adds everything the other one has seen to this one
+	 */
+	public void merge(RunningStats other)
+	{
+		if(other.count == 0)
+			return;
+		if(count == 0)
+		{
+			count = other.count;
+			mean = other.mean;
+			m2 = other.m2;
+			min = other.min;
+			max = other.max;
+			return;
+		}
+
+		long total = count + other.count;
+		double delta = other.mean - mean;
+		mean += delta * other.count / total;
+		m2 += other.m2 + delta * delta * ((double) count * other.count / total);
+		count = total;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	public long getCount()
+	{
+		return count;
+	}
+
+	public double getMean()
+	{
+		return mean;
+	}
+
+	/**
+	 * @return the population variance, 0 when empty
+	 */
+	public double getVariance()
+	{
+		return count == 0 ? 0 : m2 / count;
+	}
+
+	public double getStandardDeviation()
+	{
+		return Math.sqrt(getVariance());
+	}
+
+	public double getMin()
+	{
+		return min;
+	}
+
+	public double getMax()
+	{
+		return max;
+	}
+}
@@ -0,0 +1,146 @@
+package numpick;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+import java.util.UUID;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Draws toothpick scenes with a known count, for testing at scales the real picture sets can't reach.
+ * Sticks are thick anti-aliased lines at random positions and angles on a plain background, with optional blur and noise.
+ * Scenes come out as Mats, or as a folder of PNGs with a toothpickCounts.txt manifest that ImageDataset can read.
+ *
+ * Usage: SceneGenerator folder images [seed]
+ */
+public class SceneGenerator
+{
+	public int width = 1400;
+	public int height = 1050;
+	// Toothpicks per scene, picked uniformly in between
+	public int minCount = 5;
+	public int maxCount = 60;
+	// Toothpick length and thickness as a fraction of the larger dimension
+	public double length = 0.18;
+	public double thickness = 0.006;
+	// Standard deviation of the gaussian pixel noise, 0 for none
+	public double noise = 6;
+	// Gaussian blur sigma in pixels, 0 for none
+	public double blur = 1;
+
+	private Random random;
+
+	public static class Scene
+	{
+		public Mat image;
+		public int count;
+	}
+
+	public SceneGenerator(long seed)
+	{
+		random = new Random(seed);
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		SceneGenerator generator = new SceneGenerator(args.length > 2 ? Long.parseLong(args[2]) : 1);
+		generator.writeDataset(args[0], Integer.parseInt(args[1]));
+	}
+
+	/**
+	 * @return a new scene, the caller releases its image
+	 */
+	public Scene next()
+	{
+		return render(minCount + random.nextInt(maxCount - minCount + 1));
+	}
+
+	/**
+	 * @return a new scene with this many toothpicks, the caller releases its image
+	 */
+	public Scene render(int count)
+	{
+		// A slightly different table each time
+		Scalar background = new Scalar(190 + random.nextInt(50), 195 + random.nextInt(50), 200 + random.nextInt(50));
+		Mat image = new Mat(height, width, CvType.CV_8UC3, background);
+
+		int dim = Math.max(width, height);
+		double stickLength = length * dim;
+		int stickThickness = Math.max(2, (int) Math.round(thickness * dim));
+		for(int i=0; i<count; i++)
+		{
+			// Keep the whole stick in the picture so every one is countable
+			double angle = random.nextDouble() * Math.PI;
+			double dx = Math.cos(angle) * stickLength / 2, dy = Math.sin(angle) * stickLength / 2;
+			double marginX = Math.abs(dx) + stickThickness, marginY = Math.abs(dy) + stickThickness;
+			double x = marginX + random.nextDouble() * Math.max(1, width - 2 * marginX);
+			double y = marginY + random.nextDouble() * Math.max(1, height - 2 * marginY);
+
+			Scalar wood = new Scalar(70 + random.nextInt(40), 140 + random.nextInt(40), 190 + random.nextInt(40));
+			Imgproc.line(image, new Point(x - dx, y - dy), new Point(x + dx, y + dy), wood, stickThickness, Imgproc.LINE_AA, 0);
+		}
+
+		if(blur > 0)
+			Imgproc.GaussianBlur(image, image, new Size(0, 0), blur);
+
+		if(noise > 0)
+		{
+			// Saturating 8 bit maths can't add negative noise, so add one sample and subtract another
+			Mat sample = new Mat(height, width, CvType.CV_8UC3);
+			Core.randn(sample, 0, noise);
+			Core.add(image, sample, image);
+			Core.randn(sample, 0, noise);
+			Core.subtract(image, sample, image);
+			sample.release();
+		}
+
+		Scene scene = new Scene();
+		scene.image = image;
+		scene.count = count;
+		return scene;
+	}
+
+	/**
+	 * Writes this many scenes into the folder along with a toothpickCounts.txt listing them
+	 */
+	public void writeDataset(String folder, int images) throws IOException
+	{
+		File directory = new File(folder);
+		directory.mkdirs();
+
+		BufferedWriter manifest = new BufferedWriter(new FileWriter(new File(directory, "toothpickCounts.txt")));
+		try
+		{
+			for(int i=0; i<images; i++)
+			{
+				// Same 40 character names as the Unity set, the manifest format depends on it
+				String filename = new UUID(random.nextLong(), random.nextLong()) + ".png";
+				Scene scene = next();
+				Imgcodecs.imwrite(new File(directory, filename).getPath(), scene.image);
+				scene.image.release();
+
+				manifest.write(filename + " " + scene.count);
+				manifest.newLine();
+
+				if((i + 1) % 1000 == 0)
+					System.out.println((i + 1) + " scenes written");
+			}
+		}
+		finally
+		{
+			manifest.close();
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package numpick;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+/**
+ * Counts toothpicks at full resolution by cutting the image into tiles.
+ * Every tile is blurred, edge detected and Hough transformed on its own, in parallel, so no accumulator is bigger than a tile's.
+ *
+ * Each tile only votes with the edge pixels inside it, the margin around it is only there so blur and Canny
+ * see past the edge. A toothpick crossing a seam is found as a piece in each tile it crosses. Pieces are kept
+ * down to a fraction of the threshold, moved into image coordinates, and pieces of the same line from different
+ * tiles are merged with their votes added up before the real threshold is applied.
+ *
+ * A piece's theta is only good to a step, so its rho drifts from the true line the further it is from the piece.
+ * Pieces are kept as a point on the line next to the tile instead, and are matched and merged by those points.
+ *
+ * Only the harnesses in Numpick use it so far, the dataset and the pipeline count the usual 700 pixel images.
+ */
+public class TiledCounter
+{
+	private static final ExecutorService tilePool = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "tile-worker");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	// Side of the square each tile votes for, in full resolution pixels
+	public int tileSize = 1024;
+	// Extra pixels around a tile for blur and Canny to look at
+	public int margin = 8;
+	// Tiles keep lines down to this fraction of the threshold, so a line split by a seam adds back up when merged
+	public double partialFraction = 0.25;
+	// How close two pieces from different tiles have to be to be the same line. The rho tolerance is next to the line,
+	// further along it pieces as far apart in angle as the theta tolerance drift apart by that much for every pixel
+	public double rhoTolerance = 3;
+	public double thetaTolerance = 2 * Math.PI / 180;
+
+	private final ImageProcess edgeDetection;
+
+	/**
+	 * @param preprocessor where the blur and Canny steps come from, its resize is skipped
+	 */
+	public TiledCounter(ImagePreprocessor preprocessor)
+	{
+		edgeDetection = new ImageProcess(preprocessor.blur, preprocessor.canny);
+	}
+
+	/**
+	 * @return the count, -1 if the file could not be read
+	 */
+	public int countToothpicks(String filename, int houghThreshold, double splitThreshold) throws InterruptedException
+	{
+		Mat gray = ImagePreprocessor.decode(filename, false, Integer.MAX_VALUE);
+		try
+		{
+			if(gray.empty())
+				return -1;
+			return countToothpicks(gray, houghThreshold, splitThreshold);
+		}
+		finally
+		{
+			gray.release();
+		}
+	}
+
+	/**
+	 * @param gray full resolution gray image
+	 * @param houghThreshold the threshold that works on the usual 700 pixel images, it is scaled up with the image
+	 */
+	public int countToothpicks(Mat gray, int houghThreshold, double splitThreshold) throws InterruptedException
+	{
+		Point[] lines = detectLines(gray, houghThreshold);
+		return Numpick.countLines(lines, gray.width(), gray.height(), splitThreshold, null, null);
+	}
+
+	/**
+	 * @return lines in (rho, theta) form in image coordinates, most votes first
+	 */
+	public Point[] detectLines(Mat gray, int houghThreshold) throws InterruptedException
+	{
+		// Lines have as many edge pixels as they are long, so the threshold grows with the resolution
+		double scale = Math.max(1, (double) Math.max(gray.width(), gray.height()) / ImagePreprocessor.size);
+		int threshold = (int) Math.round(houghThreshold * scale);
+		int tileThreshold = (int) (threshold * partialFraction);
+
+		List<Future<List<Piece>>> tiles = new ArrayList<Future<List<Piece>>>();
+		int tile = 0;
+		for(int y=0; y<gray.rows(); y+=tileSize)
+		{
+			for(int x=0; x<gray.cols(); x+=tileSize)
+				tiles.add(tilePool.submit(new TileTask(gray, tile++, x, y, tileThreshold)));
+		}
+
+		// Every tile is waited for even after one fails, they all read the caller's image
+		List<Piece> pieces = new ArrayList<Piece>();
+		Throwable failure = null;
+		for(Future<List<Piece>> future : tiles)
+		{
+			try
+			{
+				pieces.addAll(future.get());
+			}
+			catch (ExecutionException e)
+			{
+				if(failure == null)
+					failure = e.getCause();
+			}
+		}
+		if(failure != null)
+			throw new RuntimeException(failure);
+
+		return merge(pieces, threshold);
+	}
+
+	// A line found in one tile, already in image coordinates
+	private static class Piece
+	{
+		int tile;
+		int votes;
+		double rho, theta;
+		// The point of the line closest to the tile's centre
+		double x, y;
+	}
+
+	private class TileTask implements Callable<List<Piece>>
+	{
+		Mat gray;
+		int tile, x, y, tileThreshold;
+
+		TileTask(Mat gray, int tile, int x, int y, int tileThreshold)
+		{
+			this.gray = gray;
+			this.tile = tile;
+			this.x = x;
+			this.y = y;
+			this.tileThreshold = tileThreshold;
+		}
+
+		@Override
+		public List<Piece> call()
+		{
+			int width = Math.min(tileSize, gray.cols() - x);
+			int height = Math.min(tileSize, gray.rows() - y);
+			int left = Math.max(0, x - margin), top = Math.max(0, y - margin);
+			int right = Math.min(gray.cols(), x + width + margin), bottom = Math.min(gray.rows(), y + height + margin);
+
+			Mat region = gray.submat(top, bottom, left, right);
+			Mat edges = new Mat();
+			Mat core = null;
+			HoughVotes votes;
+			try
+			{
+				edgeDetection.process(region, edges);
+				core = edges.submat(y - top, y - top + height, x - left, x - left + width);
+				votes = HoughVotes.build(core, 1, Math.PI/180, tileThreshold, true);
+			}
+			finally
+			{
+				if(core != null)
+					core.release();
+				edges.release();
+				region.release();
+			}
+
+			int count = votes.count(tileThreshold);
+			List<Piece> pieces = new ArrayList<Piece>(count);
+			for(int i=0; i<count; i++)
+			{
+				Piece piece = new Piece();
+				piece.tile = tile;
+				piece.votes = votes.getVotes(i);
+				piece.theta = votes.getTheta(i);
+				// x cos + y sin = rho, shifted by the tile's corner
+				double cos = Math.cos(piece.theta), sin = Math.sin(piece.theta);
+				piece.rho = votes.getRho(i) + x * cos + y * sin;
+				double centreX = x + width / 2.0, centreY = y + height / 2.0;
+				double offset = centreX * cos + centreY * sin - piece.rho;
+				piece.x = centreX - offset * cos;
+				piece.y = centreY - offset * sin;
+				pieces.add(piece);
+			}
+			return pieces;
+		}
+	}
+
+	/**
+	 * Joins pieces of the same line from different tiles, strongest first, and keeps the lines with enough votes in total.
+	 * Two pieces from the same tile are two peaks of one accumulator, so they stay separate lines.
+	 * A line's rho is fitted again at its merged theta through the vote weighted mean of its pieces' points.
+	 */
+	private Point[] merge(List<Piece> pieces, int threshold)
+	{
+		Piece[] sorted = pieces.toArray(new Piece[pieces.size()]);
+		Arrays.sort(sorted, new Comparator<Piece>()
+		{
+			@Override
+			public int compare(Piece a, Piece b)
+			{
+				return Integer.compare(b.votes, a.votes);
+			}
+		});
+
+		// Vote weighted sums of x, y and theta, in the orientation of each line's first piece, then the votes
+		List<double[]> lines = new ArrayList<double[]>();
+		List<boolean[]> tilesInLine = new ArrayList<boolean[]>();
+		int tileCount = 0;
+		for(Piece piece : sorted)
+			tileCount = Math.max(tileCount, piece.tile + 1);
+
+		for(Piece piece : sorted)
+		{
+			int match = -1;
+			double theta = piece.theta;
+			for(int m=0; m<lines.size() && match == -1; m++)
+			{
+				if(tilesInLine.get(m)[piece.tile])
+					continue;
+
+				double[] line = lines.get(m);
+				double lineX = line[0] / line[3], lineY = line[1] / line[3], lineTheta = line[2] / line[3];
+				// theta and theta - PI are the same line, the points don't care
+				double candidateTheta = piece.theta;
+				if(candidateTheta - lineTheta > Math.PI / 2)
+					candidateTheta -= Math.PI;
+				else if(lineTheta - candidateTheta > Math.PI / 2)
+					candidateTheta += Math.PI;
+
+				if(Math.abs(candidateTheta - lineTheta) > thetaTolerance)
+					continue;
+
+				// Distance of the piece's point from the line, and how far along the line it is
+				double cos = Math.cos(lineTheta), sin = Math.sin(lineTheta);
+				double dx = piece.x - lineX, dy = piece.y - lineY;
+				double across = Math.abs(dx * cos + dy * sin);
+				double along = Math.abs(-dx * sin + dy * cos);
+				if(across <= rhoTolerance + along * thetaTolerance)
+				{
+					match = m;
+					theta = candidateTheta;
+				}
+			}
+
+			if(match == -1)
+			{
+				match = lines.size();
+				lines.add(new double[4]);
+				tilesInLine.add(new boolean[tileCount]);
+			}
+
+			double[] line = lines.get(match);
+			line[0] += piece.x * piece.votes;
+			line[1] += piece.y * piece.votes;
+			line[2] += theta * piece.votes;
+			line[3] += piece.votes;
+			tilesInLine.get(match)[piece.tile] = true;
+		}
+
+		List<double[]> kept = new ArrayList<double[]>();
+		for(double[] line : lines)
+		{
+			if(line[3] > threshold)
+				kept.add(line);
+		}
+		Collections.sort(kept, new Comparator<double[]>()
+		{
+			@Override
+			public int compare(double[] a, double[] b)
+			{
+				return Double.compare(b[3], a[3]);
+			}
+		});
+
+		Point[] result = new Point[kept.size()];
+		for(int i=0; i<result.length; i++)
+		{
+			double[] line = kept.get(i);
+			double theta = line[2] / line[3];
+			double rho = line[0] / line[3] * Math.cos(theta) + line[1] / line[3] * Math.sin(theta);
+			// Back into [0, PI) like the transforms report
+			if(theta < 0)
+			{
+				theta += Math.PI;
+				rho = -rho;
+			}
+			else if(theta >= Math.PI)
+			{
+				theta -= Math.PI;
+				rho = -rho;
+			}
+			result[i] = new Point(rho, theta);
+		}
+		return result;
+	}
+}